@@ -0,0 +1,287 @@
+/**
+ * Authors: Carlos Gonzalez, Nicola Pedretti
+ * Washington University in St. Louis
+ * CSE 473: Introduction to Computer Networks
+ * Lab 3
+ *
+ * The BoundedCache class is the cache a DhtServer keeps of pairs whose
+ * replies passed through it. It holds at most a given number of pairs
+ * and a given number of bytes, and chooses what to keep with W-TinyLFU:
+ *
+ *  - new pairs enter a small LRU window, about 1% of the entries;
+ *  - pairs pushed out of the window compete for a place in the main
+ *    area against its least recently used pair, and the one that has
+ *    been asked for less often lately, going by a FrequencySketch of
+ *    every get and put, is evicted;
+ *  - the main area is a segmented LRU: pairs enter its probation
+ *    segment and move to the protected segment, about 80% of it, when
+ *    they are hit again, so a burst of one-off keys cannot flush out
+ *    the pairs that are asked for all the time.
+ *
+ * Sizes are counted as the characters of the key and value plus a fixed
+ * per-entry overhead, a rough measure of the heap they take.
+ *
+ * Each pair is kept with the owner's revision of it and a lease. A pair
+ * is never replaced by an older revision, invalidations only remove
+ * revisions older than their own, and a pair whose lease has run out is
+ * treated as gone, which bounds how stale it can get when an
+ * invalidation is lost. All methods are synchronized.
+ **/
+
+import java.util.HashMap;
+
+public class BoundedCache {
+
+    private static final int OVERHEAD = 64; // bytes per entry, roughly
+    //Segments, each an LRU list with its least recently used pair first.
+    private static final byte WINDOW = 0;
+    private static final byte PROBATION = 1;
+    private static final byte PROTECTED = 2;
+
+    private int maxEntries; // most pairs kept
+    private long maxBytes; // most bytes kept
+    private int windowMax; // most pairs in the window
+    private int protectedMax; // most pairs in the protected segment
+    private HashMap<String, Node> nodes; // the pairs, by key
+    private Node[] heads; // sentinel of each segment's list
+    private int[] counts; // pairs in each segment
+    private long bytes; // size of all the pairs
+    private FrequencySketch sketch; // recent popularity of keys
+
+    /**
+     * Creates an empty cache.
+     * @param maxEntries
+     *      most pairs kept.
+     * @param maxBytes
+     *      most bytes kept.
+     */
+    public BoundedCache(int maxEntries, long maxBytes) {
+        this.maxEntries = Math.max(maxEntries, 1);
+        this.maxBytes = maxBytes;
+        windowMax = Math.max(1, this.maxEntries / 100);
+        protectedMax = (this.maxEntries - windowMax) * 4 / 5;
+        nodes = new HashMap<String, Node>();
+        heads = new Node[3];
+        for (int i = 0; i < heads.length; i++) {
+            heads[i] = new Node(null, null);
+            heads[i].prev = heads[i].next = heads[i];
+        }
+        counts = new int[3];
+        sketch = new FrequencySketch(this.maxEntries);
+    }
+
+    /**
+     * Looks up a key, counting it as asked for.
+     * @param key
+     *      the key.
+     * @return
+     *      the cached value, or null if there is none.
+     */
+    public synchronized String get(String key) {
+        return get(key, null);
+    }
+
+    /**
+     * Looks up a key along with the owner's revision of its pair,
+     * counting it as asked for.
+     * @param key
+     *      the key.
+     * @param revision
+     *      gets the revision of the cached pair in its first element,
+     *      if the key is cached and this is not null.
+     * @return
+     *      the cached value, or null if there is none.
+     */
+    public synchronized String get(String key, long[] revision) {
+        sketch.increment(key);
+        Node n = nodes.get(key);
+        if (n == null)
+            return null;
+        if (n.until <= now()) {
+            drop(n);
+            return null;
+        }
+        hit(n);
+        if (revision != null)
+            revision[0] = n.revision;
+        return n.val;
+    }
+
+    /**
+     * Caches a pair, counting its key as asked for, and evicts pairs
+     * until the cache is within its bounds again. A pair already cached
+     * with a newer revision is kept instead.
+     * @param key
+     *      the key.
+     * @param val
+     *      the value.
+     * @param revision
+     *      the owner's revision of the pair, 0 if unknown.
+     * @param lease
+     *      how long the pair may be served, in ms.
+     */
+    public synchronized void put(String key, String val, long revision,
+            long lease) {
+        sketch.increment(key);
+        Node n = nodes.get(key);
+        if (n != null) {
+            if (n.revision > revision)
+                return;
+            bytes += weight(key, val) - weight(key, n.val);
+            n.val = val;
+            n.revision = revision;
+            n.until = now() + lease;
+            hit(n);
+        } else {
+            n = new Node(key, val);
+            n.revision = revision;
+            n.until = now() + lease;
+            nodes.put(key, n);
+            bytes += weight(key, val);
+            link(n, WINDOW);
+        }
+        evict();
+    }
+
+    /**
+     * Drops a key from the cache, if it is there.
+     * @param key
+     *      the key.
+     */
+    public synchronized void remove(String key) {
+        Node n = nodes.remove(key);
+        if (n != null) {
+            unlink(n);
+            bytes -= weight(n.key, n.val);
+        }
+    }
+
+    /**
+     * Drops a key from the cache if its cached revision is older than
+     * the given one, as told by the key's owner after a change.
+     * @param key
+     *      the key.
+     * @param revision
+     *      the owner's revision of the pair after the change.
+     * @return
+     *      false if a copy as new as the revision is kept instead.
+     */
+    public synchronized boolean invalidate(String key, long revision) {
+        Node n = nodes.get(key);
+        if (n == null)
+            return true;
+        if (n.revision >= revision)
+            return false;
+        drop(n);
+        return true;
+    }
+
+    /** @return the number of pairs cached. */
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Moves a pair that was hit to the front of its segment, or from
+     * probation to the protected segment, making room there if needed.
+     */
+    private void hit(Node n) {
+        if (n.segment == PROBATION) {
+            unlink(n);
+            link(n, PROTECTED);
+            if (counts[PROTECTED] > protectedMax) {
+                Node demoted = heads[PROTECTED].next;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            byte segment = n.segment;
+            unlink(n);
+            link(n, segment);
+        }
+    }
+
+    /**
+     * Moves pairs out of an overflowing window into probation, and
+     * evicts pairs until the cache is within its bounds. Every eviction
+     * pits the window's oldest pair against the main area's, even when
+     * the window is not full, and a pair leaving the window is only let
+     * into the main area if its key has been asked for more often than
+     * the key of the pair it would push out.
+     */
+    private void evict() {
+        while (nodes.size() > maxEntries || bytes > maxBytes) {
+            Node candidate = counts[WINDOW] > 0 ? heads[WINDOW].next
+                    : null;
+            Node victim = counts[PROBATION] > 0 ? heads[PROBATION].next
+                    : counts[PROTECTED] > 0 ? heads[PROTECTED].next : null;
+            if (candidate == null)
+                drop(victim);
+            else if (victim == null)
+                drop(candidate);
+            else if (sketch.frequency(candidate.key)
+                    > sketch.frequency(victim.key)) {
+                drop(victim);
+                unlink(candidate);
+                link(candidate, PROBATION);
+            } else
+                drop(candidate);
+        }
+        while (counts[WINDOW] > windowMax) {
+            Node n = heads[WINDOW].next;
+            unlink(n);
+            link(n, PROBATION);
+        }
+    }
+
+    /** Evicts a pair. */
+    private void drop(Node n) {
+        nodes.remove(n.key);
+        unlink(n);
+        bytes -= weight(n.key, n.val);
+    }
+
+    /** Adds a pair at the most recently used end of a segment. */
+    private void link(Node n, byte segment) {
+        Node head = heads[segment];
+        n.segment = segment;
+        n.prev = head.prev;
+        n.next = head;
+        head.prev.next = n;
+        head.prev = n;
+        counts[segment]++;
+    }
+
+    /** Takes a pair out of its segment. */
+    private void unlink(Node n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        n.prev = n.next = null;
+        counts[n.segment]--;
+    }
+
+    /** The current time in ms, for leases; not the time of day. */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /** Rough size of a pair, in bytes. */
+    private static long weight(String key, String val) {
+        return OVERHEAD + 2L * (key.length() + val.length());
+    }
+
+    /** A cached pair, linked into its segment's list. */
+    private static final class Node {
+        final String key;
+        String val;
+        long revision; // owner's revision of the pair
+        long until; // end of the lease, in ms
+        byte segment;
+        Node prev, next;
+
+        Node(String key, String val) {
+            this.key = key;
+            this.val = val;
+        }
+    }
+}
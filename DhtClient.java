@@ -5,18 +5,34 @@
  * Lab 3
  *
  * The Dht Client class initializes a Dht client. This program will
- * take from 3 to 5 command line arguments. The first is the IP address
+ * take from 3 to 6 command line arguments. The first is the IP address
  * of theinterface that the client should bind to its own datagram socket.
  * The second is the name of a configuration file containing the IP address
  * and port number used by a DhtServer (each server writes such a file
  * when it starts up). The third is an operation (get or put) and
- * the remaining arguments specify the key and/or value for the operation.
- * These may be omitted. DhtClient does not do any error checking.
+ * the remaining arguments specify the key and/or value for the operation,
+ * and for a put, the number of seconds the pair should live for. These
+ * may be omitted. DhtClient does not do any error checking.
+ *
+ * If the first argument is the literal string "smart", the client keeps
+ * a map of which server owns which range of hashes, learned from the
+ * hashRange and senderInfo fields of earlier replies and saved next to
+ * the server's configuration file. It hashes the key the same way the
+ * servers do and sends the request straight to its owner, falling back
+ * to the server in the configuration file if the owner fails or does
+ * not answer.
+ *
+ * Servers in iterative mode answer with a "referral" naming the next
+ * server to ask instead of forwarding the request; the client follows
+ * referrals until it gets an answer or the request's ttl runs out.
  **/
+import java.io.File;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class DhtClient {
     
@@ -25,11 +41,18 @@ public class DhtClient {
     private String operation;
     private String key;
     private String value;
+    private int expires = -1; // seconds a put's pair lives, -1 for ever
     private InetAddress myIp;
     private int tag = 12345;
     private int ttl = 100;
     private boolean debug = true;
     private DatagramSocket socket;
+    private boolean smart; // sends straight to the key's owner when true
+    //Known owners by the first hash of their range: the owner's address
+    //and the last hash of its range.
+    private TreeMap<Integer, Pair<InetSocketAddress, Integer>> owners;
+    private String ownersFile; // where owners is saved between runs
+    private static final int OWNER_TIMEOUT = 1000; // ms to wait on an owner
     
     //Creating the Generics object for future use.
     private static Generics gen = new Generics();
@@ -44,13 +67,21 @@ public class DhtClient {
         //Create a new client based on the command line inputs.
         DhtClient client = new DhtClient(args);
         
-        //Create and send the packet with the paremeters.
+        //Create the packet with the paremeters and, in smart mode, try
+        //the key's owner first.
         Packet out = new Packet();
-        client.sendToServer(out);
-        
-        //Receive the response from the DHT
         Packet in = new Packet();
-        client.receiveFromServer(in);
+        if (!client.smart || !client.askOwner(out, in)) {
+            //Send the packet to the server in the config file.
+            client.sendToServer(out);
+            
+            //Receive the response from the DHT
+            client.receiveFromServer(out, in);
+        }
+        
+        //Remember who owns the key.
+        if (client.smart)
+            client.learnOwner(in);
         
         //Close the TCP connection.
         client.closeConnection();
@@ -63,19 +94,31 @@ public class DhtClient {
      */
     public DhtClient(String[] args) {
         try {
+            //A leading "smart" turns on smart mode.
+            int first = 0;
+            if (args[0].equals("smart")) {
+                smart = true;
+                first = 1;
+            }
+            
             //Set the client packet's parameters based on input.
-            myIp = InetAddress.getByName(args[0]);
-            filename = args[1];
-            operation = args[2];
-            key = args.length < 4 ? null : args[3];
-            value = args.length < 5 ? null : args[4];
+            myIp = InetAddress.getByName(args[first]);
+            filename = args[first + 1];
+            operation = args[first + 2];
+            key = args.length < first + 4 ? null : args[first + 3];
+            value = args.length < first + 5 ? null : args[first + 4];
+            if (args.length >= first + 6)
+                expires = Integer.parseInt(args[first + 5]);
             
             //Initialize the output socket.
             socket = new DatagramSocket(0, myIp);
         } catch (Exception e) {
-            gen.usage(new String[] { "myIp", "serverfile", "operation" },
-                    new String[] { "key", "value" }, true);
+            gen.usage(new String[] { "[smart]", "myIp", "serverfile",
+                "operation" }, new String[] { "key", "value", "expires" },
+                true);
         }
+        if (smart)
+            loadOwners();
     }
     /**
      * Sends the packet to the corresponding server.
@@ -84,12 +127,7 @@ public class DhtClient {
      */
     private void sendToServer(Packet out) {
         //Initializing the outgoing packet's values.
-        out.type = operation;
-        out.key = key;
-        out.val = value;
-        out.tag = tag;
-        out.ttl = ttl;
-        out.senderInfo = null;
+        fillPacket(out);
         
         //Reads the servers information from its configuration file.
         ArrayList<String> info = gen.readLinesFromFile(filename);
@@ -103,17 +141,159 @@ public class DhtClient {
             System.out.println("Incorrect server IP or port.");
         }
     }
+    /**
+     * Sets the outgoing packet's fields from the command line.
+     * @param out
+     *       packet to be filled in.
+     */
+    private void fillPacket(Packet out) {
+        out.type = operation;
+        out.key = key;
+        out.val = value;
+        out.tag = tag;
+        out.ttl = ttl;
+        out.expires = expires;
+        out.senderInfo = null;
+    }
+    
+    /**
+     * Sends the packet straight to the owner of its key, if the owner is
+     * known, and waits a while for the reply.
+     * @param out
+     *       packet to be sent.
+     * @param in
+     *       packet into which the reply is received.
+     * @return
+     *       true if the owner answered with anything but a failure, false
+     *       if the request should go to the server in the config file.
+     */
+    private boolean askOwner(Packet out, Packet in) {
+        if (key == null)
+            return false;
+        int hash = DhtServer.hashit(key);
+        Map.Entry<Integer, Pair<InetSocketAddress, Integer>> owner =
+                owners.floorEntry(hash);
+        if (owner == null || owner.getValue().right < hash)
+            return false;
+        
+        fillPacket(out);
+        try {
+            socket.setSoTimeout(OWNER_TIMEOUT);
+            out.send(socket, owner.getValue().left, debug);
+            InetSocketAddress sender = followReferrals(out, in,
+                    in.receive(socket, debug));
+            socket.setSoTimeout(0);
+            if (sender != null && in.tag == tag
+                    && !in.type.equals("failure"))
+                return true;
+        } catch (Exception e) {
+            //Fall back to the server in the config file.
+        }
+        //The owner is gone or no longer answers for the key.
+        owners.remove(owner.getKey());
+        saveOwners();
+        return false;
+    }
+    
+    /**
+     * Records the owner named in a reply, replacing any known owners
+     * whose ranges overlap its range, and saves the map.
+     * @param in
+     *       the reply.
+     */
+    private void learnOwner(Packet in) {
+        if (in.hashRange == null || in.senderInfo == null)
+            return;
+        int left = in.hashRange.left;
+        int right = in.hashRange.right;
+        //A range that starts before this one may still reach into it.
+        //Neighbouring servers share the hash on their boundary, so that
+        //one hash alone is not an overlap.
+        Map.Entry<Integer, Pair<InetSocketAddress, Integer>> before =
+                owners.lowerEntry(left);
+        if (before != null && before.getValue().right > left)
+            owners.remove(before.getKey());
+        owners.subMap(left, true, right, false).clear();
+        owners.put(left, new Pair<InetSocketAddress, Integer>(
+                in.senderInfo.left, right));
+        saveOwners();
+    }
+    
+    /**
+     * Reads the map of owners saved by earlier runs, if there is one.
+     * Each line holds the first and last hash of a range, followed by
+     * the IP address and port number of its owner.
+     */
+    private void loadOwners() {
+        owners = new TreeMap<Integer, Pair<InetSocketAddress, Integer>>();
+        ownersFile = filename + ".owners";
+        if (!new File(ownersFile).exists())
+            return;
+        for (String line : gen.readLinesFromFile(ownersFile)) {
+            String[] f = line.trim().split(" ");
+            try {
+                owners.put(Integer.parseInt(f[0]),
+                        new Pair<InetSocketAddress, Integer>(
+                                new InetSocketAddress(f[2],
+                                        Integer.parseInt(f[3])),
+                                Integer.parseInt(f[1])));
+            } catch (Exception e) {
+                //Skip lines that do not parse; they will be relearned.
+            }
+        }
+    }
+    
+    /** Writes the map of owners for later runs. */
+    private void saveOwners() {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (Map.Entry<Integer, Pair<InetSocketAddress, Integer>> owner
+                : owners.entrySet()) {
+            InetSocketAddress adr = owner.getValue().left;
+            lines.add(owner.getKey() + " " + owner.getValue().right + " "
+                    + adr.getAddress().getHostAddress() + " "
+                    + adr.getPort());
+        }
+        gen.writeLinesToFile(lines, ownersFile);
+    }
+    
+    /**
+     * Resends the request to the server a referral names, for as long
+     * as the replies are referrals. The ttl of each referral is carried
+     * over, so a chain of referrals cannot go on forever.
+     * @param out
+     *       the request.
+     * @param in
+     *       packet holding the latest reply, and receiving the next.
+     * @param sender
+     *       the latest reply's sender, or null if there was none.
+     * @return
+     *       the sender of the final reply, or null on failure.
+     */
+    private InetSocketAddress followReferrals(Packet out, Packet in,
+            InetSocketAddress sender) {
+        while (sender != null && in.tag == tag && in.succInfo != null
+                && in.type.equals("referral")) {
+            out.ttl = in.ttl;
+            out.send(socket, in.succInfo.left, debug);
+            sender = in.receive(socket, debug);
+        }
+        return sender;
+    }
+    
     /**
      * Receives a packet and outputs an error if it fails.
+     * @param out
+     *       the request, resent if the reply is a referral.
      * @param in
      *       packet to be received
      */
-    private void receiveFromServer(Packet in) {
+    private void receiveFromServer(Packet out, Packet in) {
         
         InetSocketAddress sender = null;
         
-        //Receive a packet and store its address.
-        sender = in.receive(socket, debug);
+        //Receive a packet and store its address, following referrals
+        //on to the servers they name.
+        sender = followReferrals(out, in, in.receive(socket, debug));
         
         //Detect any errors.
         if (sender == null || in.tag != tag) {
@@ -7,7 +7,11 @@
   *
   * Server for simple distributed hash table that stores (key,value) strings.
   *
-  *  Inputs: DhtServer myIp numRoutes cfgFile [ cache ] [ debug ] [ predFile ]
+  *  Inputs: DhtServer myIp numRoutes cfgFile [ cache ] [ cache=N ]
+  *                    [ cachebytes=N ] [ debug ] [ binary ] [ nio ]
+  *                    [ workers=N ] [ virtual ] [ sockets=N ] [ pending=N ]
+  *                    [ fingers ] [ latency ] [ iterative ] [ direct ]
+  *                    [ offheap ] [ log=DIR ] [ hot=N ] [ predFile ]
   *
   *  myIp	is the IP address to use for this server's socket
   *  numRoutes	is the max number of nodes allowed in the DHT's routing table;
@@ -16,10 +20,95 @@
   *		address and port number of its socket
   *  cache	is an optional argument; if present it is the literal string
   *		"cache"; when cache is present, the caching feature of the
-  *		server is enabled; otherwise it is not
+  *		server is enabled; otherwise it is not; the cache holds at
+  *		most 100000 pairs and 64MB, and when full keeps the pairs
+  *		asked for most often lately (W-TinyLFU); a cached pair is
+  *		dropped when its owner sends an "invalidate" packet, and is
+  *		only served for a 10 second lease in any case; the server
+  *		also remembers, for 2 seconds, up to 10000 keys its owners
+  *		found no match for, and answers gets for them itself until
+  *		a put for the key is seen
+  *  cache=N	is an optional argument; when present, the cache is enabled
+  *		and holds at most N pairs
+  *  cachebytes=N	is an optional argument; when present, the cache holds
+  *		at most N bytes of keys and values, roughly counted
   *  debug	is an optional argument; if present it is the literal string
   *		"debug"; when debug is present, a copy of every packet received
   *		and sent is printed on stdout
+  *  binary	is an optional argument; if present it is the literal string
+  *		"binary"; when binary is present, the server probes its peers
+  *		with "hello" packets and switches to the compact binary (v2)
+  *		format for every peer that answers in kind; clients and older
+  *		servers keep receiving ASCII
+  *  nio	is an optional argument; if present it is the literal string
+  *		"nio"; when nio is present, the server uses a non-blocking
+  *		DatagramChannel with direct buffers, serviced by a Selector,
+  *		instead of a blocking DatagramSocket; every channel the
+  *		server opens is registered with that one Selector
+  *  workers=N	is an optional argument; when present, received packets are
+  *		handed to N worker threads instead of being served by the
+  *		receiving thread; packets with the same key always go to the
+  *		same worker, so they are served in the order they arrived
+  *  virtual	is an optional argument; if present it is the literal string
+  *		"virtual"; when virtual is present, every received packet is
+  *		served on a thread of its own (a virtual thread on Java 21 and
+  *		later; before that, one of at most 256 pooled platform
+  *		threads, and packets are dropped while all are busy and 1024
+  *		more wait), and a request that this server forwards on behalf
+  *		of a client blocks until its reply comes back, is resent if it
+  *		does not, and is failed if the DHT never answers
+  *  sockets=N	is an optional argument; when present, the server opens N
+  *		sockets (or channels) on its IP address and port with
+  *		SO_REUSEPORT, each with a receiving thread of its own (or,
+  *		with nio, all served by one selecting thread), so the
+  *		kernel spreads incoming flows over N receive queues; the
+  *		config file and the address advertised to peers are unchanged
+  *  pending=N	is an optional argument giving the most forwarded requests
+  *		this server tracks on behalf of its clients (4096 by default,
+  *		0 to disable); a tracked request that gets no reply is resent
+  *		over an alternate route with exponential backoff, and the
+  *		client gets a failure packet if all attempts go unanswered
+  *  fingers	is an optional argument; if present it is the literal string
+  *		"fingers"; when fingers is present, the server keeps a
+  *		Chord-style finger table whose entry i is the owner of hash
+  *		firstHash + 2^i (mod 2^31), refreshed in the background with
+  *		"lookup" packets; fingers are used for routing alongside the
+  *		routing table, so lookups take O(log N) hops
+  *  latency	is an optional argument; if present it is the literal string
+  *		"latency"; when latency is present, the server keeps a smoothed
+  *		round trip time for each peer, measured with "ping" packets and
+  *		from requests answered by the server they were forwarded to,
+  *		and forwards to the nearest of the servers that get a request
+  *		about as close to its owner as the closest one does
+  *  iterative	is an optional argument; if present it is the literal string
+  *		"iterative"; when iterative is present, the server does not
+  *		forward requests it cannot answer, but answers them at once
+  *		with a "referral" packet whose succInfo is the next server to
+  *		ask; the requester, a client or the relay that forwarded the
+  *		request, sends the request there itself
+  *  direct	is an optional argument; if present it is the literal string
+  *		"direct"; when direct is present, the server answers requests
+  *		relayed by another server straight to the client, and sends
+  *		the relay a "delivered" packet so that it can still learn the
+  *		route, update its cache and stop resending the request
+  *  offheap	is an optional argument; if present it is the literal string
+  *		"offheap"; when offheap is present, the server's (key,value)
+  *		pairs are kept as raw ASCII bytes in direct buffers outside the
+  *		Java heap (see OffHeapStore), instead of as Strings in a hash
+  *		map
+  *  log=DIR	is an optional argument; when present, every change to the
+  *		server's (key,value) pairs is logged to disk in directory DIR
+  *		before it is acknowledged, and the pairs are snapshotted there
+  *		from time to time (see LogStore); a server started again with
+  *		the same DIR comes back with the pairs it had, and with
+  *		the time each pair that expires had left
+  *  hot=N	is an optional argument; when present, the server counts the
+  *		gets it serves for each key, and a key that gets about N of
+  *		them a second is pushed as a "replica" to its successor
+  *		and the servers in its routing table, which answer
+  *		gets for the key themselves; replicas are refreshed every
+  *		second while the key stays hot, invalidated when it changes,
+  *		and withdrawn once it has cooled down
   *  predFile	is an optional argument specifying the configuration file of
   *		this node's predecessor in the DHT; this file is used to obtain
   *		the IP address and port number of the precessor's socket,
@@ -62,13 +151,33 @@
   *
   *  Put requests are formatted similarly, but in this case the client
   * typically specifies a value field (omitting the value field causes
-  * the pair with the specified key to be removed).
+  * the pair with the specified key to be removed). A put may also carry
+  * an expires field, the number of seconds the pair lives; once they are
+  * up, gets no longer find it and the server removes it.
   *
   *  The packet type "failure" is used to indicate an error of some sort;
   *  in this case, the "reason" field provides an explanation of the failure.
   *  Other packet types are listed below. The "join" type is used by a server
-  *  to join an existing DHT. The "transfer" is used to transfer (key,value)
-  *  pairs to a newly added server.
+  *  to join an existing DHT; the server it joins gives it the upper part of
+  *  its range, split where about half the keys it stores fall on each side,
+  *  or in the middle when it stores too few keys to go by.
+  *  The "transfer" is used to transfer (key,value)
+  *  pairs to a newly added server, one pair per packet; servers now
+  *  move them in "batch" packets instead, each holding as many pairs
+  *  as fit in its val field, numbered in its tag and identified by
+  *  the range being moved in its hashRange, and acknowledged with an
+  *  "ack" packet whose tag is the number of the next batch expected;
+  *  a last batch with no val field ends the transfer.
+  *  A "referral" answers a request with the
+  *  address and first hash of the next server to ask, in succInfo. A
+  *  "delivered" packet tells a relay that the reply to a request it
+  *  forwarded went straight to the client; its reason field holds the
+  *  type of that reply, and its other fields are those of the reply.
+  *  An "invalidate" packet tells a relay that the pair with its key has
+  *  changed, and that any copy of it older than its revision is stale.
+  *  A "replica" packet carries a copy of a hot pair, with its revision,
+  *  for its receiver to answer gets with for expires seconds; without a
+  *  value, it withdraws the copy.
   *
   *  Other fields and their use are described briefly below
   *
@@ -83,7 +192,9 @@
   *  hashRange 	is a pair of integers separated by a colon, specifying a range
   *  	  	of hash indices; it is included in the response to a "join"
   *  	  	packet, to inform the new DHT server of the set of nodes
-  *  	  	it is responsible for
+  *  	  	it is responsible for; the owner of a key also includes its
+  *  	  	range, with its senderInfo, in its replies to gets and puts,
+  *  	  	so that clients can learn which server owns which keys
   *  succInfo  	is the IP address and port number of a server, followed by its
   *  	  	first hash index; this information is included in the response
   *  	  	to a join packet to inform the new DHT server about its
@@ -93,12 +204,36 @@
   *             followed by its first hash index; this information is sent
   *             by a DHT toprovide routing information that can be used by
   *             another
+  *  revision	is the owner's revision of a pair, a number that grows with
+  *		every change the owner makes to it; owners put it on their
+  *		replies to gets and puts, and relays keep it with the pairs
+  *		they cache; a "no match" carries the latest revision the
+  *		owner had made when it looked, so that a relay keeps a pair
+  *		cached with a newer one
   */
 
 import java.awt.Window.Type;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.swing.text.html.HTMLDocument.HTMLReader.IsindexAction;
 
@@ -112,15 +247,107 @@ public class DhtServer {
     private int numRoutes; // number of routes in routing table
     private boolean cacheOn; // enables caching when true
     private boolean debug; // enables debug messages when true
+    private boolean binaryOn; // enables the binary format when true
+    private boolean nioOn; // uses a selected DatagramChannel when true
     
-    private HashMap<String, String> map; // key/value pairs
-    private HashMap<String, String> cache; // cached pairs
-    private List<Pair<InetSocketAddress, Integer>> rteTbl;//Routing Table
+    private Store map; // key/value pairs
+    private String logDir; // directory map is logged to, or null
+    private LogStore logStore; // map, when it is logged; null otherwise
+    private HashHistogram keyHashes; // stored keys, by hash
+    //When each key that expires does, in ms of System.nanoTime.
+    private ConcurrentHashMap<String, Long> deadlines;
+    //Keys with a deadline, by deadline.
+    private TimingWheel<String> expiries;
+    private static final int EXPIRY_TICK = 100; // ms per wheel slot
+    private static final int EXPIRY_SLOTS = 1024; // wheel slots
+    //Removes expired pairs, apart from the timers so as not to hold up
+    //the resends.
+    private ScheduledThreadPoolExecutor expirer;
+    private BoundedCache cache; // cached pairs
+    private int cacheEntries = 100000; // most pairs cached
+    private long cacheBytes = 64L << 20; // most bytes cached
+    private static final int CACHE_LEASE = 10000; // ms a cached pair lasts
+    private BoundedCache missing; // keys recently found to have no pair
+    private static final int MISSING_ENTRIES = 10000; // most keys missing
+    private static final int MISSING_LEASE = 2000; // ms a miss lasts
+    //Revision of each pair this server owns, and the last one given out.
+    private ConcurrentHashMap<String, Long> revisions;
+    private AtomicLong lastRevision;
+    //Relays that may cache each key, and when their leases end, in ms;
+    //servers holding a replica of the key count as relays.
+    private ConcurrentHashMap<String,
+            ConcurrentHashMap<InetSocketAddress, Long>> readers;
+    private int hotGets; // gets a second that make a key hot, 0 for never
+    private FrequencySketch heat; // recent gets of each key, when hotGets
+    private Set<String> hotKeys; // keys this server replicates
+    private BoundedCache replicas; // pairs other servers replicate here
+    private static final int HEAT_INTERVAL = 1000; // ms between refreshes
+    private static final int REPLICA_LEASE = 3; // s a replica lasts
+    private static final int REPLICA_ENTRIES = 1000; // most replicas held
+    private static final int HEAT_KEYS = 16384; // keys counted at a time
+    //Routing table; an immutable snapshot, replaced on every change.
+    private volatile List<Pair<InetSocketAddress, Integer>> rteTbl;
+    //Routes, fingers and successor sorted by first hash, for lookups;
+    //rebuilt whenever one of them changes.
+    private volatile RouteIndex routeIndex;
+    private Set<InetSocketAddress> binaryPeers; // peers that speak v2
     
-    private DatagramSocket sock;
+    private int numWorkers; // worker threads, 0 to serve on the receiver
+    //Per-worker queues of received packets and their senders.
+    private List<BlockingQueue<Pair<Packet, InetSocketAddress>>> workQueues;
+    //Runs one task per received packet when virtualOn.
+    private boolean virtualOn;
+    private ExecutorService perRequest;
+    private static final int MAX_REQUEST_THREADS = 256; // without virtual
+    private static final int MAX_REQUEST_QUEUE = 1024; // packets waiting
+    //Replies awaited by threads that forwarded a client's request.
+    private ConcurrentHashMap<RequestKey, CompletableFuture<Packet>> awaiting;
+    private static final int FORWARD_TIMEOUT = 1000; // ms per attempt
+    private static final int FORWARD_TRIES = 3; // attempts per request
+    //Requests forwarded for clients and not answered yet, oldest first.
+    private Map<RequestKey, Pending> pending;
+    private int maxPending; // bound on pending, 0 to disable it
+    private ScheduledThreadPoolExecutor timers; // runs the resends
+    private static final int RETRY_TIMEOUT = 250; // ms, doubled per resend
+    //Gets forwarded for clients and not answered yet, by key, each with
+    //the gets for the same key that wait for its reply.
+    private ConcurrentHashMap<String, Flight> flights;
+    private static final int FLIGHT_TIMEOUT = 4000; // ms a flight may take
+    //Pairs being moved to servers that joined after us, by receiver and
+    //first hash of the range moved.
+    private ConcurrentHashMap<RequestKey, Transfer> transfers;
+    //Transfers to us under way, by the same key; each is expected from
+    //the join until its last batch is stored.
+    private ConcurrentHashMap<RequestKey, Incoming> incoming;
+    private static final int XFER_WINDOW = 32; // batches unacknowledged
+    private static final int XFER_TIMEOUT = 200; // ms before resending
+    private static final int XFER_TRIES = 20; // timeouts between reports
+    //Most bytes of pairs in a batch, leaving room for the other fields.
+    private static final int XFER_BYTES = Packet.MAX_LEN - 200;
+    private boolean fingersOn; // routes through the finger table when true
+    //Finger table; entry i owns firstHash + 2^i, null until looked up.
+    //An immutable snapshot, replaced on every change.
+    private volatile List<Pair<InetSocketAddress, Integer>> fingers;
+    private int nextFinger; // next finger to refresh
+    private static final int NUM_FINGERS = 31; // one per bit of a hash
+    private static final int FINGER_REFRESH = 200; // ms between lookups
+    private boolean latencyOn; // prefers nearby servers when true
+    //Smoothed round trip time to each peer, in microseconds.
+    private ConcurrentHashMap<InetSocketAddress, Long> rtt;
+    private int nextProbe; // position in routeIndex of the next peer pinged
+    private static final int PROBE_INTERVAL = 500; // ms between pings
+    private boolean iterativeOn; // refers requests instead of forwarding
+    private boolean directOn; // answers relayed requests to the client
+    //Held for reading while serving a get or put in range, and for
+    //writing while the range shrinks during a join.
+    private ReentrantReadWriteLock rangeLock;
+    
+    private DatagramSocket sock; // blocking socket, unless nioOn
+    private DatagramChannel chan; // channel used instead when nioOn
+    private int numSockets; // sockets sharing myAdr through SO_REUSEPORT
     private InetSocketAddress myAdr;
     private InetSocketAddress predecessor; // DHT predecessor
-    private Pair<InetSocketAddress, Integer> succInfo; // successor
+    private volatile Pair<InetSocketAddress, Integer> succInfo; //successor
     private Pair<Integer, Integer> hashRange; // my DHT hash range
     private int sendTag; // tag for new outgoing packets
     //Custom class in order to use functions across DhtClient & DhtServer.
@@ -149,19 +376,35 @@ public class DhtServer {
             InetAddress myIp = InetAddress.getByName(args[0]);
             numRoutes = Integer.parseInt(args[1]); //Routes in table.
             cnfgFile = args[2]; //File to store server's IP and port.
-            cacheOn = debug = false; //Default false for cache and debug.
+            //Default false for cache, debug, binary and nio.
+            cacheOn = debug = binaryOn = nioOn = false;
+            numSockets = 1; //A single socket unless told otherwise.
             sendTag=6578;//Default sendTag for the server.
-            map = new HashMap<String, String>(); //Map of key,value pairs.
-            cache = new HashMap<String, String>(); //Map of cache.
+            //Peers known to understand binary packets.
+            binaryPeers = ConcurrentHashMap.newKeySet();
+            rangeLock = new ReentrantReadWriteLock();
+            awaiting = new ConcurrentHashMap<RequestKey,
+                    CompletableFuture<Packet>>();
+            maxPending = 4096;
+            flights = new ConcurrentHashMap<String, Flight>();
+            transfers = new ConcurrentHashMap<RequestKey, Transfer>();
+            incoming = new ConcurrentHashMap<RequestKey, Incoming>();
+            fingers = Collections.nCopies(NUM_FINGERS, null);
+            rtt = new ConcurrentHashMap<InetSocketAddress, Long>();
+            deadlines = new ConcurrentHashMap<String, Long>();
+            expiries = new TimingWheel<String>(EXPIRY_SLOTS, EXPIRY_TICK,
+                    now());
+            revisions = new ConcurrentHashMap<String, Long>();
+            //Start from the time of day, so that revisions keep growing
+            //across restarts.
+            lastRevision = new AtomicLong(System.currentTimeMillis() * 1000);
+            readers = new ConcurrentHashMap<String,
+                    ConcurrentHashMap<InetSocketAddress, Long>>();
+            hotKeys = ConcurrentHashMap.newKeySet();
             
             //The routing table to store server shortcuts.
-            rteTbl = new LinkedList<Pair<InetSocketAddress, Integer>>();
-            
-            //The socket from which to listen for clients.
-            sock = new DatagramSocket(0, myIp);
-            
-            //The server's unique IP,port pair.
-            myAdr = new InetSocketAddress(myIp, sock.getLocalPort());
+            rteTbl = Collections.emptyList();
+            routeIndex = new RouteIndex(rteTbl);
             
             //Range of values allowed to be mapped in this server.
             hashRange = new Pair<Integer, Integer>(0, Integer.MAX_VALUE);
@@ -170,16 +413,132 @@ public class DhtServer {
             for (int i = 3; i < args.length; i++) {
                 if (args[i].equals("cache"))
                     cacheOn = true;
+                else if (args[i].startsWith("cache=")) {
+                    cacheOn = true;
+                    cacheEntries = Integer.parseInt(args[i].substring(6));
+                } else if (args[i].startsWith("cachebytes="))
+                    cacheBytes = Long.parseLong(args[i].substring(11));
                 else if (args[i].equals("debug"))
                     debug = true;
+                else if (args[i].equals("binary"))
+                    binaryOn = true;
+                else if (args[i].equals("nio"))
+                    nioOn = true;
+                else if (args[i].startsWith("workers="))
+                    numWorkers = Integer.parseInt(args[i].substring(8));
+                else if (args[i].equals("virtual"))
+                    virtualOn = true;
+                else if (args[i].startsWith("sockets="))
+                    numSockets = Integer.parseInt(args[i].substring(8));
+                else if (args[i].startsWith("pending="))
+                    maxPending = Integer.parseInt(args[i].substring(8));
+                else if (args[i].equals("fingers"))
+                    fingersOn = true;
+                else if (args[i].equals("latency"))
+                    latencyOn = true;
+                else if (args[i].equals("iterative"))
+                    iterativeOn = true;
+                else if (args[i].equals("direct"))
+                    directOn = true;
+                else if (args[i].equals("offheap"))
+                    map = new OffHeapStore();
+                else if (args[i].startsWith("log="))
+                    logDir = args[i].substring(4);
+                else if (args[i].startsWith("hot=")) {
+                    hotGets = Integer.parseInt(args[i].substring(4));
+                    //The sketch counts up to twice a second's gets.
+                    if (hotGets < 0 || hotGets > Integer.MAX_VALUE / 2) {
+                        System.out.println("hot=N takes from 0 to "
+                                + Integer.MAX_VALUE / 2 + " gets a second");
+                        throw new IllegalArgumentException(args[i]);
+                    }
+                }
                 else
                     predFile = args[i];
             }
+            
+            //Cache of pairs seen passing by, bounded in pairs and bytes.
+            cache = new BoundedCache(cacheEntries, cacheBytes);
+            missing = new BoundedCache(MISSING_ENTRIES, cacheBytes);
+            replicas = new BoundedCache(REPLICA_ENTRIES, cacheBytes);
+            //Counts of up to twice a second's gets, since they are halved
+            //every second.
+            if (hotGets > 0)
+                heat = new FrequencySketch(HEAT_KEYS, 2 * hotGets);
+            
+            //Store of key,value pairs, on the heap unless told otherwise.
+            if (map == null)
+                map = new HeapStore();
+            //Loaded from and logged to disk, if asked to.
+            if (logDir != null)
+                openLog();
+            //Counted by hash from here on, as keys come and go.
+            keyHashes = new HashHistogram();
+            map.forEach((key, val) -> keyHashes.add(hashit(key)));
+            //Pairs that were counting down go on from where they were.
+            if (logStore != null)
+                logStore.forEachDeadline((key, until) -> {
+                    long deadline = now() + until
+                            - System.currentTimeMillis();
+                    deadlines.put(key, deadline);
+                    expiries.schedule(key, deadline);
+                });
+            
+            //The table of requests awaiting a reply. When full, the
+            //oldest request is no longer tracked.
+            pending = Collections.synchronizedMap(
+                    new LinkedHashMap<RequestKey, Pending>() {
+                        @Override
+                        protected boolean removeEldestEntry(
+                                Map.Entry<RequestKey, Pending> eldest) {
+                            if (size() <= maxPending)
+                                return false;
+                            eldest.getValue().cancel();
+                            return true;
+                        }
+                    });
+            timers = new ScheduledThreadPoolExecutor(1);
+            timers.setRemoveOnCancelPolicy(true);
+            
+            //The socket or channel from which to listen for clients. The
+            //channel stays blocking until the server has joined the DHT.
+            int port;
+            if (nioOn) {
+                chan = openChannel(new InetSocketAddress(myIp, 0));
+                port = chan.socket().getLocalPort();
+            } else {
+                sock = openSocket(new InetSocketAddress(myIp, 0));
+                port = sock.getLocalPort();
+            }
+            
+            //The server's unique IP,port pair.
+            myAdr = new InetSocketAddress(myIp, port);
             //Catching exceptions in case of failure to create server.
         } catch (Exception e) {
             gen.usage(new String[] { "DhtServer", "myIp", "numRoutes",
-                "cfgFile" }, new String[] { "debug", "predFile" }, true);
+                "cfgFile" }, new String[] { "cache", "cache=N",
+                "cachebytes=N", "debug", "binary", "nio", "workers=N",
+                "virtual", "sockets=N", "pending=N", "fingers", "latency",
+                "iterative", "direct", "offheap", "log=DIR", "hot=N",
+                "predFile" }, true);
+        }
+    }
+    
+    /**
+     * Makes the store durable by wrapping it in a LogStore kept in
+     * logDir, which also loads the pairs saved there by an earlier run.
+     */
+    private void openLog() {
+        try {
+            map = logStore = new LogStore(map, new File(logDir));
+        } catch (IOException e) {
+            System.out.println("Error opening the log in " + logDir + ": "
+                    + e);
+            System.exit(gen.READ_FILE_ERROR);
         }
+        if (debug)
+            System.out.println("loaded " + map.size() + " pairs from "
+                    + logDir);
     }
     
     /**
@@ -191,6 +550,27 @@ public class DhtServer {
         writeMyConfigFile();
         //Configure the server's predecessor.
         configPredecessor();
+        //Start the worker threads, if any.
+        startWorkers();
+        //Keep the finger table fresh.
+        if (fingersOn)
+            timers.scheduleWithFixedDelay(this::refreshFinger,
+                    FINGER_REFRESH, FINGER_REFRESH, TimeUnit.MILLISECONDS);
+        //Remove pairs as they expire.
+        expirer = new ScheduledThreadPoolExecutor(1);
+        expirer.scheduleAtFixedRate(this::expireKeys, EXPIRY_TICK,
+                EXPIRY_TICK, TimeUnit.MILLISECONDS);
+        //Keep replicas of hot keys fresh, and withdraw the cold ones.
+        if (hotGets > 0)
+            timers.scheduleWithFixedDelay(this::refreshReplicas,
+                    HEAT_INTERVAL, HEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        //Forget relays whose cached copies have run out.
+        timers.scheduleWithFixedDelay(this::sweepReaders, CACHE_LEASE,
+                CACHE_LEASE, TimeUnit.MILLISECONDS);
+        //Keep measuring the round trip to each peer.
+        if (latencyOn)
+            timers.scheduleWithFixedDelay(this::probeLatency,
+                    PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
         //Begin listening for clients.
         listenForClients();
     }
@@ -217,6 +597,7 @@ public class DhtServer {
         if (predFile == null){
             //Successor is itself since its the first server to be created.
             succInfo = new Pair<InetSocketAddress, Integer>(myAdr, 0);
+            rebuildRouteIndex();
         }
         else{
             //Setting the predecessor by reading the file.
@@ -242,15 +623,16 @@ public class DhtServer {
         out.type = "join";
         out.tag = sendTag;
         
-        //Sending the join packet.
-        out.send(sock, predAdr, debug);
+        //Sending the join packet, always as ASCII since the predecessor's
+        //format is not known yet.
+        transmit(out, predAdr, false);
         
         //Creating the receiving packet.
         Packet in = new Packet();
         InetSocketAddress sender = null;
         
         //Reading the receiving packet.
-        sender = in.receive(sock, debug);
+        sender = receive(in);
         
         //Checking for packet receiving errors.
         if (sender == null ) {
@@ -269,15 +651,152 @@ public class DhtServer {
             //Setting the succesor of this server to the one specified
             //by the previous server.
             succInfo = new Pair<InetSocketAddress, Integer>(new InetSocketAddress(in.succInfo.left.getAddress(),in.succInfo.left.getPort()),in.succInfo.right.intValue());
+            rebuildRouteIndex();
 			addRoute(succInfo); 
+            
+            //Changes made here from now on come after any the
+            //predecessor made to the pairs it is about to move here.
+            lastRevision.accumulateAndGet(in.revision, Math::max);
+            //Those pairs, all but the split point's, which stays with
+            //the predecessor, come in batches from 0 to an empty one.
+            if (hashRange.left < hashRange.right) {
+                int from = hashRange.left + 1;
+                incoming.put(new RequestKey(sender, from), new Incoming(
+                        new Pair<Integer, Integer>(from, hashRange.right)));
+            }
+        }
+    }
+    
+    /**
+     * Starts one thread per configured worker. Each worker serves the
+     * packets queued for it, one at a time.
+     */
+    private void startWorkers() {
+        if (virtualOn)
+            perRequest = newPerRequestExecutor();
+        workQueues = new ArrayList<BlockingQueue<Pair<Packet,
+                InetSocketAddress>>>();
+        for (int i = 0; i < numWorkers; i++) {
+            BlockingQueue<Pair<Packet, InetSocketAddress>> queue =
+                    new ArrayBlockingQueue<Pair<Packet, InetSocketAddress>>(
+                            1024);
+            workQueues.add(queue);
+            Thread worker = new Thread(() -> {
+                while (true) {
+                    try {
+                        Pair<Packet, InetSocketAddress> job = queue.take();
+                        servePacket(job.left, job.right);
+                        job.left.recycle();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        //A bad packet must not take the worker down.
+                        System.out.println("Worker failure: " + e);
+                    }
+                }
+            }, "DhtServer-worker-" + i);
+            worker.start();
+        }
+    }
+    
+    /**
+     * Creates the executor that serves each packet on a new thread:
+     * virtual threads where the runtime has them (Java 21 and later),
+     * otherwise a pool of at most MAX_REQUEST_THREADS platform threads
+     * with MAX_REQUEST_QUEUE packets waiting for them. Past that, the
+     * pool refuses packets, since each of its threads may block until a
+     * reply comes.
+     */
+    private static ExecutorService newPerRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("No virtual threads, serving requests on "
+                    + MAX_REQUEST_THREADS + " platform threads");
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    MAX_REQUEST_THREADS, MAX_REQUEST_THREADS,
+                    60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_REQUEST_QUEUE));
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
         }
     }
     
     /**
-     *Server now begins to listen for client's requests.
+     * Opens a blocking socket bound to the given address, shared with
+     * the server's other sockets if there are several.
+     * @param local
+     *     address to bind to; port 0 picks a free port.
+     * @return
+     *     the bound socket.
+     */
+    private DatagramSocket openSocket(InetSocketAddress local)
+            throws IOException {
+        DatagramSocket s = new DatagramSocket(null);
+        if (numSockets > 1)
+            s.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        s.bind(local);
+        return s;
+    }
+    
+    /**
+     * Opens a blocking channel bound to the given address, shared with
+     * the server's other channels if there are several.
+     * @param local
+     *     address to bind to; port 0 picks a free port.
+     * @return
+     *     the bound channel.
+     */
+    private DatagramChannel openChannel(InetSocketAddress local)
+            throws IOException {
+        DatagramChannel c = DatagramChannel.open();
+        if (numSockets > 1)
+            c.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        c.bind(local);
+        return c;
+    }
+    
+    /**
+     *Server now begins to listen for client's requests. Any extra
+     * sockets are only opened now, after the join, since the kernel
+     * could otherwise deliver the join reply to one nobody reads yet.
+     * Each extra socket gets a receiving thread of its own, while
+     * channels are all served by this thread through one selector;
+     * replies are all sent from the first socket.
      */
     private void listenForClients() {
-        
+        List<DatagramChannel> chans = new ArrayList<DatagramChannel>();
+        if (nioOn)
+            chans.add(chan);
+        for (int i = 1; i < numSockets; i++) {
+            try {
+                if (nioOn) {
+                    chans.add(openChannel(myAdr));
+                    continue;
+                }
+                DatagramSocket s = openSocket(myAdr);
+                new Thread(() -> listenOnSocket(s),
+                        "DhtServer-receiver-" + i).start();
+            } catch (IOException e) {
+                System.out.println("Cannot share port: " + e);
+                System.exit(gen.CHANNEL_ERROR);
+                return;
+            }
+        }
+        if (nioOn)
+            listenOnChannels(chans);
+        else
+            listenOnSocket(sock);
+    }
+    
+    /**
+     * Listens for client's requests on a blocking socket.
+     * @param s
+     *     the socket to receive from.
+     */
+    private void listenOnSocket(DatagramSocket s) {
         //Initializing the input packet from a client.
         Packet in = new Packet();
         
@@ -285,7 +804,7 @@ public class DhtServer {
         InetSocketAddress sender = null;
         while (true) {
             //Receive the packet from a client.
-            sender = in.receive(sock, debug);
+            sender = in.receive(s, debug);
             
             //Checking packet receiving failure.
             if (sender == null) {
@@ -293,21 +812,129 @@ public class DhtServer {
                 continue;
             }
             
-            //Checking the packet for any error in its syntax.
-            if (!in.check())
-                //Syntax error's return a packet with the reason
-                //for the error.
-                alertFailure(sender, in);
-            
-            else{
-                //Checking to see if the packet has a route to be added.
-                if( !(in.senderInfo == null)){
-                    addRoute(in.senderInfo);
-                }
-                
-                //Handle the packet according to its type.
-                handlePacket(in, sender);
+            in = dispatch(in, sender);
+        }
+    }
+    
+    /**
+     * Listens for client's requests on non-blocking channels, all
+     * registered with a single selector. Every time the selector reports
+     * channels readable, all datagrams waiting on each are drained and
+     * served before selecting again.
+     * @param chans
+     *     the channels to receive from.
+     */
+    private void listenOnChannels(List<DatagramChannel> chans) {
+        //Initializing the input packet from a client.
+        Packet in = new Packet();
+        try {
+            Selector selector = Selector.open();
+            for (DatagramChannel c : chans) {
+                c.configureBlocking(false);
+                c.register(selector, SelectionKey.OP_READ);
+            }
+            while (true) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys())
+                    in = drain((DatagramChannel) key.channel(), in);
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.out.println("Channel failure: " + e);
+            System.exit(gen.CHANNEL_ERROR);
+        }
+    }
+    
+    /**
+     * Receives and dispatches every datagram waiting on a non-blocking
+     * channel.
+     * @param ready
+     *     the channel reported readable.
+     * @param in
+     *     packet to receive into.
+     * @return
+     *     the packet to receive into next.
+     */
+    private Packet drain(DatagramChannel ready, Packet in) {
+        InetSocketAddress sender;
+        //A null sender means the channel is empty, or that a bad packet
+        //was dropped; in the latter case the selector reports the
+        //channel again right away.
+        while ((sender = in.receive(ready, debug)) != null)
+            in = dispatch(in, sender);
+        return in;
+    }
+    
+    /**
+     * Serves a received packet on the calling thread or, when workers
+     * are configured, queues it for the worker that owns its key.
+     * @param in
+     *     the received packet.
+     * @param sender
+     *     the address of the packet's sender.
+     * @return
+     *     the packet to receive into next; in since it was served, or a
+     *     fresh one if in was handed over to a worker.
+     */
+    private Packet dispatch(Packet in, InetSocketAddress sender) {
+        if (virtualOn) {
+            //The packet may end up with a thread waiting for a reply, so
+            //it is left to the garbage collector rather than recycled.
+            Packet job = in;
+            try {
+                perRequest.execute(() -> servePacket(job, sender));
+            } catch (RejectedExecutionException e) {
+                //Too many requests under way; the sender resends.
+                System.out.println("request dropped, server busy");
+                return in;
+            }
+            return Packet.obtain();
+        }
+        if (numWorkers == 0) {
+            servePacket(in, sender);
+            return in;
+        }
+        int worker = in.key == null ? 0
+                : (in.key.hashCode() & 0x7fffffff) % numWorkers;
+        try {
+            //Blocks while the worker is backed up, which pushes the load
+            //back onto the socket's receive queue.
+            workQueues.get(worker).put(
+                    new Pair<Packet, InetSocketAddress>(in, sender));
+        } catch (InterruptedException e) {
+            return in;
+        }
+        return Packet.obtain();
+    }
+    
+    /**
+     * Serves a single packet received from a client or another server.
+     * @param in
+     *     the received packet.
+     * @param sender
+     *     the address of the packet's sender.
+     */
+    private void servePacket(Packet in, InetSocketAddress sender) {
+        //A peer that sends binary can also read it. Answer its first
+        //probe with our own so that it learns the same about us.
+        if (binaryOn && in.version == Packet.BINARY_VERSION
+                && binaryPeers.add(sender) && in.type.equals("hello"))
+            sayHello(sender);
+        
+        //Checking the packet for any error in its syntax.
+        if (!in.check())
+            //Syntax error's return a packet with the reason
+            //for the error.
+            alertFailure(sender, in);
+        
+        else{
+            //Checking to see if the packet has a route to be added.
+            if( !(in.senderInfo == null)){
+                addRoute(in.senderInfo);
             }
+            
+            //Handle the packet according to its type.
+            handlePacket(in, sender);
         }
     }
     
@@ -320,14 +947,15 @@ public class DhtServer {
      */
     private void alertFailure(InetSocketAddress dest, Packet in) {
         //Creating and setting the reply packet.
-        Packet reply = new Packet();
+        Packet reply = Packet.obtain();
         reply.type = "failure";
         reply.reason = in.reason;
         reply.tag = in.tag;
         reply.ttl = in.ttl;
         
         //sending the failure packet.
-        reply.send(sock, dest, debug);
+        send(reply, dest);
+        reply.recycle();
     }
     
     /**
@@ -345,32 +973,158 @@ public class DhtServer {
             handleXfer(in);
             return;
         }
+        else if (in.type.equals("batch")) {
+            handleBatch(in, sender);
+            return;
+        }
+        else if (in.type.equals("ack")) {
+            handleAck(in, sender);
+            return;
+        }
         else if (in.type.equals("join")) {
             handleJoin(in, sender);
             return;
         }
+        //Probes only carry routing and format information, which has
+        //already been recorded.
+        else if (in.type.equals("hello"))
+            return;
+        else if (in.type.equals("lookup")) {
+            handleLookup(in);
+            return;
+        }
+        //Echo pings straight back, and time the echoes of our own.
+        else if (in.type.equals("ping")) {
+            in.type = "pong";
+            in.senderInfo = new Pair<InetSocketAddress, Integer>(myAdr,
+                    hashRange.left);
+            send(in, sender);
+            return;
+        }
+        else if (in.type.equals("pong")) {
+            sampleRtt(sender, (int) (System.nanoTime() / 1000) - in.tag);
+            return;
+        }
+        //A server we forwarded a request to sent us on to another one.
+        else if (in.type.equals("referral")) {
+            if (!completeWaiter(in))
+                followReferral(in);
+            return;
+        }
+        //The reply to a request we forwarded went straight to the client.
+        else if (in.type.equals("delivered")) {
+            if (!completeWaiter(in)) {
+                settle(in);
+                learnDelivered(in);
+            }
+            return;
+        }
+        //An owner changed a pair we may have cached or replicated; pass
+        //it on to the relays we answered from the replica.
+        else if (in.type.equals("invalidate")) {
+            if (in.key == null)
+                return;
+            if (cacheOn) {
+                cache.invalidate(in.key, in.revision);
+                missing.invalidate(in.key, in.revision);
+            }
+            replicas.invalidate(in.key, in.revision);
+            invalidateReaders(in.key, in.revision);
+            return;
+        }
+        //An owner replicated a hot pair here, or withdrew it.
+        else if (in.type.equals("replica")) {
+            if (in.key == null)
+                return;
+            if (in.val == null)
+                replicas.remove(in.key);
+            else
+                replicas.put(in.key, in.val, in.revision,
+                        in.expires * 1000L);
+            return;
+        }
+        //Other servers report failures to the probes and lookups we
+        //send them; there is nothing to be done about those.
+        else if (in.type.equals("failure"))
+            return;
         else if (in.type.equals("success") || in.type.equals("no match")) {
+            //Hand the reply to the thread that forwarded the request, if
+            //one is waiting for it.
+            if (completeWaiter(in))
+                return;
+            //Stop resending the request.
+            settle(in);
             //Add to cache if successful or no match and cache is set.
             addToCache(in);
+            //Answer the gets that waited for this reply.
+            land(in, false);
             //reply the packet.
             sendBack(in, in.clientAdr);
             return;
         }
-        //Checking if the packet is outside the server's assigned range.
-        else if (!isRequestInRange(in)) {
-            //If the key is in cache, return its value.
-            if(in.type.equals("get") && getFromCache(in)){
+        
+        //Checking if the packet is in the server's assigned range, and
+        //serving it if so, without a join moving the range in between.
+        boolean inRange;
+        rangeLock.readLock().lock();
+        try {
+            inRange = isRequestInRange(in);
+            if (inRange && in.type.equals("get"))
+                handleGet(in);
+            else if (inRange && in.type.equals("put"))
+                handlePut(in);
+            //Tell the client who owns the key, and the range it owns, so
+            //that a smart client can come straight here next time.
+            if (inRange) {
+                in.hashRange = new Pair<Integer, Integer>(hashRange.left,
+                        hashRange.right);
+                in.senderInfo = new Pair<InetSocketAddress, Integer>(myAdr,
+                        hashRange.left);
+            }
+        } finally {
+            rangeLock.readLock().unlock();
+        }
+        
+        if (!inRange) {
+            //Answer gets for a hot key from its replica, noting the
+            //relay as the owner would.
+            if (in.type.equals("get") && getFromReplica(in)) {
+                addReader(in);
+                sendBack(in, sender);
+                return;
+            }
+            //If the key is in cache, return its value. Only requests
+            //straight from a client are served this way; the owner only
+            //knows of the relays whose copies came from it, so copies of
+            //copies could never be invalidated.
+            if(in.type.equals("get") && in.clientAdr == null
+                    && getFromCache(in)){
                 sendBack(in,sender);
+                return;
             }
-            //Otherwise forward the packet
+            //A put is about to give the key a pair.
+            if (in.type.equals("put") && cacheOn)
+                missing.remove(in.key);
+            //Gets that come after a put must not be answered with what
+            //a get sent before it finds.
+            if (in.type.equals("put") && in.clientAdr == null)
+                closeFlight(in.key);
+            //A get for a key that is already being fetched for another
+            //client waits for that reply instead of being sent again.
+            if (!iterativeOn && in.type.equals("get") && in.clientAdr == null
+                    && joinFlight(in, sender))
+                return;
+            //In iterative mode, tell the requester where to go next.
+            if (iterativeOn)
+                refer(in, sender);
+            //Otherwise forward the packet, waiting for the reply if this
+            //is the first server to see the client's request.
+            else if (virtualOn && in.clientAdr == null)
+                forwardAndWait(in, sender);
             else
-                forward(in, sender);
+                forward(in, sender, null);
             return;
         }
-        else if (in.type.equals("get"))
-            handleGet(in);
-        else if (in.type.equals("put"))
-            handlePut(in);
         
         //After modifying the packet accordingly, return it.
         sendBack(in, sender);
@@ -385,7 +1139,17 @@ public class DhtServer {
      */
     private boolean isRequestInRange(Packet p) {
         //Hashing the key and comparing it to the server's hashRange.
-        int hash = hashit(p.key);
+        return isHashInRange(hashit(p.key));
+    }
+    
+    /**
+     *Checks if a hash is in range of this server or not.
+     * @param hash
+     *     hash to be checked for range
+     * @return
+     *     returns true if the hash is in range or false if otherwise.
+     */
+    private boolean isHashInRange(int hash) {
         int left = hashRange.left.intValue();
         int right = hashRange.right.intValue();
         if (left <= hash && hash <= right)
@@ -394,22 +1158,50 @@ public class DhtServer {
     }
     
     /**
-     *Checks if a packet's key is in the cache, if the cache is set.
+     *Checks if a packet's key is in the cache, or known to be missing,
+     * if the cache is set.
      * @param p
-     *     packet to be checked.
+     *     packet to be checked; it becomes the reply if the key is.
      * @return
-     *    returns true of the packet's key is in the cache and the
-     *    cache is set, and false otherwise.
+     *    returns true of the packet's key is in the cache or known to
+     *    be missing and the cache is set, and false otherwise.
      */
     private boolean getFromCache(Packet p){
-        if(cacheOn && cache.containsKey(p.key)){
+        if (!cacheOn)
+            return false;
+        String val = cache.get(p.key);
+        if(val != null){
             p.type = "success";
-            p.val = cache.get(p.key);
+            p.val = val;
+            return true;
+        }
+        if (missing.get(p.key) != null) {
+            p.type = "no match";
             return true;
         }
         return false;
     }
     
+    /**
+     * Checks if another server replicated a packet's key here.
+     * @param p
+     *     packet to be checked; it becomes the reply if the key is.
+     * @return
+     *     true if the key has a live replica here.
+     */
+    private boolean getFromReplica(Packet p) {
+        //The owner's revision goes back with the value, so relays cache
+        //the copy just as they would the owner's reply.
+        long[] rev = new long[1];
+        String val = replicas.get(p.key, rev);
+        if (val == null)
+            return false;
+        p.type = "success";
+        p.val = val;
+        p.revision = rev[0];
+        return true;
+    }
+    
     /**
      * Returns the packet to the address specified, usually the client.
      * @param in
@@ -426,18 +1218,72 @@ public class DhtServer {
         if(equalInetSocketAddress(in.relayAdr, myAdr)
                 || in.relayAdr == null){
             replyAdr = in.clientAdr == null ? sender : in.clientAdr ;
+            //Keep the owner's information, if the owner gave any.
+            Pair<InetSocketAddress, Integer> owner =
+                    in.hashRange == null ? null : in.senderInfo;
             in.cleanPacket();
+            in.senderInfo = owner;
         }
         
         //Returns to the relay address.
         else if (in.relayAdr != null) {
             in.senderInfo.left = myAdr;
             in.senderInfo.right = hashRange.left;
+            //Or straight to the client, letting the relay know.
+            if (directOn && in.clientAdr != null) {
+                deliver(in);
+                return;
+            }
             replyAdr = in.relayAdr;
         }
         //return the packet.
-        in.send(sock, replyAdr, debug);
+        send(in, replyAdr);
+        
+    }
+    
+    /**
+     * Sends the reply to a relayed request straight to the client, then
+     * sends the relay a "delivered" packet carrying the reply's type in
+     * its reason field. The relay uses it as it would have used the
+     * reply, without passing anything on.
+     * @param in
+     *     the reply.
+     */
+    private void deliver(Packet in) {
+        Packet note = Packet.obtain();
+        note.type = "delivered";
+        note.reason = in.type;
+        note.key = in.key;
+        note.val = in.val;
+        note.tag = in.tag;
+        note.ttl = in.ttl;
+        note.clientAdr = in.clientAdr;
+        note.relayAdr = in.relayAdr;
+        note.senderInfo = in.senderInfo;
+        note.revision = in.revision;
         
+        //The client's answer goes first; the relay is not in a hurry.
+        InetSocketAddress client = in.clientAdr;
+        Pair<InetSocketAddress, Integer> owner =
+                in.hashRange == null ? null : in.senderInfo;
+        in.cleanPacket();
+        in.senderInfo = owner;
+        send(in, client);
+        send(note, note.relayAdr);
+        note.recycle();
+    }
+    
+    /**
+     * Learns from a "delivered" packet what the relay would have learned
+     * from the reply itself, which for now means caching it.
+     * @param in
+     *     the delivered packet; its type becomes the reply's type.
+     */
+    private void learnDelivered(Packet in) {
+        in.type = in.reason == null ? "success" : in.reason;
+        in.reason = null;
+        addToCache(in);
+        land(in, false);
     }
     
     /**
@@ -455,8 +1301,13 @@ public class DhtServer {
      *          difference is interpreted modulo the range of hash values.
      *          IMPORTANT POINT - handle "wrap-around" correctly. Once a
      *          server is selected, p is sent to that server.
+     * @param avoid
+     *            a server not to forward to unless there is no other
+     *            choice, usually one that failed to answer; may be null.
+     * @return the server the packet was forwarded to.
      */
-    private void forward(Packet out, InetSocketAddress sender) {
+    private InetSocketAddress forward(Packet out, InetSocketAddress sender,
+            InetSocketAddress avoid) {
         //Initializing the closestServer
         InetSocketAddress closestServer = null;
         
@@ -465,26 +1316,414 @@ public class DhtServer {
                 hashRange.left);
         
         //Set proper relay and client address.
-        if (out.clientAdr == null) {
+        boolean relaying = out.clientAdr == null;
+        if (relaying) {
             out.relayAdr = myAdr;
             out.clientAdr = sender;
         }
         
         //Find the closest server
-        closestServer = getClosestServer(hashit(out.key));
+        closestServer = getClosestServer(hashit(out.key), avoid);
+        
+        //Keep track of the request until its reply passes back through,
+        //unless a thread is already waiting for it. Tracked before it is
+        //sent, since another thread may receive the reply right away.
+        if (relaying && maxPending > 0 && !virtualOn)
+            track(out, closestServer);
         // forward the packet.
-        out.send(sock, closestServer, debug);
+        send(out, closestServer);
+        return closestServer;
+    }
+    
+    /**
+     * Answers a request this server cannot serve with a referral to the
+     * closest server it knows of, instead of forwarding the request. The
+     * referral goes to the request's relay if it has one, and to the
+     * client otherwise. The value is left out, since the requester still
+     * has the request.
+     * @param in
+     *      the request, which becomes the referral.
+     * @param sender
+     *      the request's sender.
+     */
+    private void refer(Packet in, InetSocketAddress sender) {
+        InetSocketAddress hop = getClosestServer(hashit(in.key), null);
+        in.type = "referral";
+        in.val = null;
+        in.succInfo = routeIndex.route(hop, succInfo);
+        in.senderInfo = new Pair<InetSocketAddress, Integer>(myAdr,
+                hashRange.left);
+        send(in, in.relayAdr != null ? in.relayAdr : sender);
+    }
+    
+    /**
+     * Sends a tracked request on to the server a referral names, and
+     * restarts its resend timer. The referral's ttl is carried over, so
+     * that a chain of referrals cannot go on forever. Referrals for
+     * requests that are not tracked cannot be followed and are dropped.
+     * @param in
+     *      the referral.
+     */
+    private void followReferral(Packet in) {
+        if (in.succInfo == null || in.clientAdr == null
+                || !equalInetSocketAddress(in.relayAdr, myAdr))
+            return;
+        RequestKey id = new RequestKey(in.clientAdr, in.tag);
+        Pending p = pending.get(id);
+        if (p == null)
+            return;
+        //A referral back to us only happens on stale routes; serve the
+        //request again as if the client had just sent it.
+        if (equalInetSocketAddress(in.succInfo.left, myAdr)) {
+            if (!pending.remove(id, p))
+                return;
+            Packet again;
+            synchronized (p) {
+                p.cancel();
+                again = p.request;
+                again.ttl = in.ttl;
+                again.clientAdr = again.relayAdr = null;
+            }
+            handlePacket(again, in.clientAdr);
+            return;
+        }
+        synchronized (p) {
+            //Settled or failed meanwhile.
+            if (pending.get(id) != p)
+                return;
+            p.cancel();
+            p.hop = in.succInfo.left;
+            p.sent = System.nanoTime();
+            p.request.ttl = in.ttl;
+            send(p.request, p.hop);
+            p.timer = timers.schedule(() -> retransmit(id, p),
+                    RETRY_TIMEOUT << p.attempts, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Starts tracking a request forwarded on behalf of a client, and
+     * schedules its first resend.
+     * @param out
+     *      the forwarded request.
+     * @param hop
+     *      the server it was forwarded to.
+     */
+    private void track(Packet out, InetSocketAddress hop) {
+        RequestKey id = new RequestKey(out.clientAdr, out.tag);
+        Pending p = new Pending(out.copy(), hop);
+        //A reply settling the request at once waits until the timer is
+        //set, so that it cancels it.
+        synchronized (p) {
+            Pending old = pending.put(id, p);
+            if (old != null)
+                old.cancel();
+            p.timer = timers.schedule(() -> retransmit(id, p),
+                    RETRY_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Resends an unanswered request over an alternate route, or fails
+     * it towards the client once it has been resent FORWARD_TRIES times.
+     * Each resend waits twice as long as the previous one.
+     * @param id
+     *      the request's client address and tag.
+     * @param p
+     *      the request's entry in the pending table.
+     */
+    private void retransmit(RequestKey id, Pending p) {
+        synchronized (p) {
+            if (pending.get(id) != p)
+                return;
+            if (p.attempts < FORWARD_TRIES) {
+                p.attempts++;
+                p.hop = getClosestServer(hashit(p.request.key), p.hop);
+                send(p.request, p.hop);
+                p.timer = timers.schedule(() -> retransmit(id, p),
+                        RETRY_TIMEOUT << p.attempts, TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (!pending.remove(id, p))
+                return;
+            p.request.reason = "no reply from the DHT";
+        }
+        alertFailure(p.request.clientAdr, p.request);
+        land(p.request, true);
+    }
+    
+    /**
+     * Stops tracking the request a reply belongs to, if this server is
+     * the reply's relay.
+     * @param in
+     *      the reply.
+     */
+    private void settle(Packet in) {
+        if (in.clientAdr == null || !equalInetSocketAddress(in.relayAdr,
+                myAdr))
+            return;
+        Pending p = pending.remove(new RequestKey(in.clientAdr, in.tag));
+        if (p == null)
+            return;
+        boolean first;
+        InetSocketAddress hop;
+        long sent;
+        synchronized (p) {
+            p.cancel();
+            first = p.attempts == 0;
+            hop = p.hop;
+            sent = p.sent;
+        }
+        //A first attempt answered by the server it was sent to times the
+        //round trip to that server.
+        if (first && in.senderInfo != null && hop.equals(in.senderInfo.left))
+            sampleRtt(hop, (System.nanoTime() - sent) / 1000);
+    }
+    
+    /**
+     * Forwards a client's request and blocks until its reply comes back,
+     * then returns the reply to the client. The request is resent if no
+     * reply arrives in time, and the client gets a failure once all
+     * attempts are used up. Only used when each request has a thread of
+     * its own.
+     *
+     * @param out
+     *            is the client's request
+     * @param sender
+     *            the client's address.
+     */
+    private void forwardAndWait(Packet out, InetSocketAddress sender) {
+        RequestKey id = new RequestKey(sender, out.tag);
+        CompletableFuture<Packet> reply = new CompletableFuture<Packet>();
+        awaiting.put(id, reply);
+        InetSocketAddress hop = null, referred = null;
+        try {
+            for (int i = 0; i < FORWARD_TRIES; ) {
+                if (referred == null) {
+                    //Each new attempt tries to route around the last
+                    //server.
+                    hop = forward(out, sender, hop);
+                    i++;
+                } else {
+                    hop = referred;
+                    send(out, hop);
+                    referred = null;
+                }
+                try {
+                    Packet in = reply.get(FORWARD_TIMEOUT,
+                            TimeUnit.MILLISECONDS);
+                    //The client already has its reply.
+                    if (in.type.equals("delivered")) {
+                        learnDelivered(in);
+                        return;
+                    }
+                    //Follow a referral without using up an attempt; its
+                    //ttl bounds how many referrals there can be.
+                    if (in.type.equals("referral")) {
+                        if (in.succInfo == null)
+                            break;
+                        awaiting.remove(id, reply);
+                        reply = new CompletableFuture<Packet>();
+                        awaiting.put(id, reply);
+                        out.ttl = in.ttl;
+                        //A referral back to us only happens on stale
+                        //routes; route around the referring server.
+                        if (!equalInetSocketAddress(in.succInfo.left,
+                                myAdr))
+                            referred = in.succInfo.left;
+                        continue;
+                    }
+                    addToCache(in);
+                    land(in, false);
+                    sendBack(in, in.clientAdr);
+                    return;
+                } catch (TimeoutException e) {
+                    //Try again.
+                } catch (InterruptedException | ExecutionException e) {
+                    break;
+                }
+            }
+        } finally {
+            awaiting.remove(id, reply);
+        }
+        out.reason = "no reply from the DHT";
+        alertFailure(sender, out);
+        land(out, true);
+    }
+    
+    /**
+     * Starts a flight for a client's get, or has the get wait for the
+     * reply of the flight already under way for its key.
+     * @param in
+     *      the get.
+     * @param sender
+     *      the client.
+     * @return
+     *      true if the get waits for another one's reply, false if it
+     *      leads a new flight and is to be forwarded.
+     */
+    private boolean joinFlight(Packet in, InetSocketAddress sender) {
+        RequestKey id = new RequestKey(sender, in.tag);
+        long now = now();
+        boolean[] waits = new boolean[1];
+        Flight[] made = new Flight[1];
+        flights.compute(in.key, (k, f) -> {
+            //A client resending its get leads the flight again.
+            if (f != null && f.open && now - f.started < FLIGHT_TIMEOUT
+                    && !f.leader.equals(id)) {
+                Packet w = in.copy();
+                w.clientAdr = sender;
+                f.followers.add(w);
+                waits[0] = true;
+                return f;
+            }
+            //A flight that is closed or taking too long is taken over,
+            //along with the gets waiting for it.
+            Flight g = new Flight(id, now);
+            if (f != null) {
+                g.followers.addAll(f.followers);
+                f.cancel();
+            }
+            made[0] = g;
+            return g;
+        });
+        //A flight whose reply never comes, as when it is lost or the
+        //leader's request is no longer tracked, ends after a while.
+        //The get is recycled once handled, so its key is kept apart.
+        Flight g = made[0];
+        String key = in.key;
+        if (g != null)
+            g.timer = timers.schedule(() -> abortFlight(key, g),
+                    FLIGHT_TIMEOUT, TimeUnit.MILLISECONDS);
+        return waits[0];
+    }
+    
+    /**
+     * Ends a flight that is still under way after FLIGHT_TIMEOUT, and
+     * tells the gets waiting for it that the DHT did not reply, as when
+     * the leader's request fails.
+     * @param key
+     *      the flight's key.
+     * @param f
+     *      the flight.
+     */
+    private void abortFlight(String key, Flight f) {
+        if (!flights.remove(key, f))
+            return;
+        for (Packet w : f.followers) {
+            w.reason = "no reply from the DHT";
+            alertFailure(w.clientAdr, w);
+        }
+    }
+    
+    /**
+     * Keeps new gets for a key from waiting on the flight under way for
+     * it; the gets already waiting are answered by the next flight.
+     * @param key
+     *      the key.
+     */
+    private void closeFlight(String key) {
+        flights.computeIfPresent(key, (k, f) -> {
+            f.open = false;
+            return f;
+        });
+    }
+    
+    /**
+     * Ends the flight led by the get a reply answers, if there is one,
+     * and answers the gets that waited for it with the same reply.
+     * @param reply
+     *      the reply, or the get itself if it failed; either way it
+     *      carries the leading client's address and tag.
+     * @param failed
+     *      true if the get got no reply, in which case the waiting gets
+     *      fail with the same reason.
+     */
+    private void land(Packet reply, boolean failed) {
+        if (reply.key == null || reply.clientAdr == null)
+            return;
+        RequestKey id = new RequestKey(reply.clientAdr, reply.tag);
+        Flight[] done = new Flight[1];
+        flights.computeIfPresent(reply.key, (k, f) -> {
+            if (!f.leader.equals(id))
+                return f;
+            done[0] = f;
+            return null;
+        });
+        if (done[0] == null)
+            return;
+        done[0].cancel();
+        for (Packet w : done[0].followers) {
+            if (failed) {
+                w.reason = reply.reason;
+                alertFailure(w.clientAdr, w);
+                continue;
+            }
+            w.type = reply.type;
+            w.val = reply.val;
+            w.ttl = reply.ttl;
+            w.hashRange = reply.hashRange;
+            w.senderInfo = reply.senderInfo;
+            w.revision = reply.revision;
+            w.relayAdr = null;
+            sendBack(w, w.clientAdr);
+        }
+    }
+    
+    /**
+     * Passes a reply to the thread waiting for it in forwardAndWait.
+     * @param in
+     *      the reply.
+     * @return
+     *      true if a thread was waiting for the reply, in which case
+     *      the reply must not be handled any further; duplicates of a
+     *      reply already handed over are swallowed the same way.
+     */
+    private boolean completeWaiter(Packet in) {
+        if (in.clientAdr == null || !equalInetSocketAddress(in.relayAdr,
+                myAdr))
+            return false;
+        CompletableFuture<Packet> waiter =
+                awaiting.get(new RequestKey(in.clientAdr, in.tag));
+        if (waiter == null)
+            return false;
+        waiter.complete(in);
+        return true;
     }
     
     /**
      *Adds a packet's key and value if cache is on and the packet is
-     * a success packet.
+     * a success packet, or notes the key as missing if it is a no match
+     * packet.
      * @param in
      *      the packet to be checked.
      */
     private void addToCache(Packet in){
+        //A miss removes a cached pair, unless the pair is newer: the miss
+        //then came late, or twice.
+        if (in.type.equals("no match") && cacheOn) {
+            boolean stale = true;
+            if (in.revision == 0)
+                cache.remove(in.key);
+            else
+                stale = cache.invalidate(in.key, in.revision);
+            if (stale)
+                missing.put(in.key, "", in.revision, MISSING_LEASE);
+        }
         if(in.type.equals("success") && cacheOn){
-            cache.put(in.key, in.val);
+            //Likewise, a pair only removes a miss older than itself.
+            if (in.revision == 0)
+                missing.remove(in.key);
+            else
+                missing.invalidate(in.key, in.revision);
+            //A successful put without a value removed the pair; replies
+            //from servers that do not keep revisions remove it outright.
+            if (in.val == null && in.revision == 0)
+                cache.remove(in.key);
+            else if (in.val == null)
+                cache.invalidate(in.key, in.revision);
+            else
+                cache.put(in.key, in.val, in.revision, CACHE_LEASE);
         }
     }
     
@@ -495,15 +1734,34 @@ public class DhtServer {
      *            is the packet with type set to get.
      */
     private void handleGet(Packet p) {
-        //If the hashmap contains the key, set type to success and
+        //Note the relay before reading, so that a put racing with this
+        //get invalidates whatever the relay ends up caching.
+        addReader(p);
+        //Read the revision before the value: a put in between gives a
+        //new value with an old revision, which its invalidation still
+        //drops, rather than an old value with the new revision, which
+        //it would leave cached.
+        long revision = revisions.getOrDefault(p.key, 0L);
+        //Likewise, a miss is marked with the latest revision made here
+        //before looking, so that relays can tell it from a miss older
+        //than a pair they have cached.
+        long latest = lastRevision.get();
+        //If the store holds the key, set type to success and
         //fill in the corresponding value.
-        if (map.containsKey(p.key)) {
+        String val = map.get(p.key);
+        //A pair that has expired is gone, even if it is still stored.
+        if (val != null && !isExpired(p.key)) {
             p.type = "success";
-            p.val = map.get(p.key);
+            p.val = val;
+            p.revision = revision;
+            if (hotGets > 0)
+                warm(p);
         }
         //otherwise, return no match.
-        else
+        else {
             p.type = "no match";
+            p.revision = latest;
+        }
     }
     
     /**
@@ -514,17 +1772,341 @@ public class DhtServer {
      */
     private void handlePut(Packet p) {
         //If the put has no val clear the key.
-        if (p.val == null)
-            map.remove(p.key);
+        if (p.val == null) {
+            if (map.remove(p.key))
+                keyHashes.remove(hashit(p.key));
+        }
         //otherwise set it.
-        else
-            map.put(p.key, p.val);
+        else if (store(p.key, p.val, p.expires))
+            keyHashes.add(hashit(p.key));
+        setExpiry(p);
+        p.revision = changed(p.key, p.val != null);
         p.type = "success"; //indicate completion of command
     }
     
+    /**
+     * Gives a key that was just changed a new revision, and tells the
+     * relays that may have cached it that their copies are stale. The
+     * relay the change came through is told as well; the reply gives it
+     * the new revision, which the invalidation leaves alone.
+     * @param key
+     *     the key.
+     * @param present
+     *     true if the key still has a value.
+     * @return
+     *     the key's new revision.
+     */
+    private long changed(String key, boolean present) {
+        long revision = revise(key, present);
+        invalidateReaders(key, revision);
+        return revision;
+    }
+    
+    /**
+     * Gives a key that was just changed a new revision, as changed does,
+     * but leaves telling the relays to the caller.
+     * @param key
+     *     the key.
+     * @param present
+     *     true if the key still has a value.
+     * @return
+     *     the key's new revision.
+     */
+    private long revise(String key, boolean present) {
+        long revision = lastRevision.incrementAndGet();
+        if (present)
+            revisions.put(key, revision);
+        else
+            revisions.remove(key);
+        //A deletion is remembered for as long as the key's pairs may
+        //still be moved here.
+        if (!incoming.isEmpty()) {
+            int hash = hashit(key);
+            for (Incoming inc : incoming.values()) {
+                if (hash < inc.range.left || inc.range.right < hash)
+                    continue;
+                if (present)
+                    inc.tombstones.remove(key);
+                else
+                    inc.tombstones.put(key, revision);
+            }
+        }
+        //Replicas are invalidated with the relays; the next gets, if
+        //the key is still hot, replicate the new value.
+        hotKeys.remove(key);
+        return revision;
+    }
+    
+    /**
+     * Tells the relays that may have cached a key that copies older
+     * than a revision are stale, and forgets them.
+     * @param key
+     *     the key.
+     * @param revision
+     *     the key's new revision.
+     */
+    private void invalidateReaders(String key, long revision) {
+        ConcurrentHashMap<InetSocketAddress, Long> relays =
+                readers.remove(key);
+        if (relays == null)
+            return;
+        Packet out = Packet.obtain();
+        out.type = "invalidate";
+        out.key = key;
+        out.revision = revision;
+        long now = now();
+        relays.forEach((adr, until) -> {
+            if (until > now)
+                send(out, adr);
+        });
+        out.recycle();
+    }
+    
+    /**
+     * Counts a get served for a key, and replicates the key if that
+     * makes it hot.
+     * @param p
+     *     the get, answered with the key's value and revision.
+     */
+    private void warm(Packet p) {
+        heat.increment(p.key);
+        int gets = heat.frequency(p.key);
+        if (gets >= hotGets && hotKeys.add(p.key))
+            replicate(p.key, p.val, p.revision);
+    }
+    
+    /**
+     * Pushes a copy of a pair to the successor and the servers in the
+     * routing table, or withdraws it from them. Each of them is noted as
+     * a relay of the key, so that it is invalidated with the relays,
+     * for longer than anything it answered from the copy can be cached.
+     * @param key
+     *     the key.
+     * @param val
+     *     the value, or null to withdraw the copies.
+     * @param revision
+     *     the pair's revision.
+     */
+    private void replicate(String key, String val, long revision) {
+        Packet out = Packet.obtain();
+        out.type = "replica";
+        out.key = key;
+        out.val = val;
+        out.revision = revision;
+        out.expires = val == null ? -1 : REPLICA_LEASE;
+        Set<InetSocketAddress> holders = new HashSet<InetSocketAddress>();
+        Pair<InetSocketAddress, Integer> succ = succInfo;
+        if (succ != null)
+            holders.add(succ.left);
+        for (Pair<InetSocketAddress, Integer> route : rteTbl)
+            holders.add(route.left);
+        holders.remove(myAdr);
+        long until = now() + REPLICA_LEASE * 1000L + 2 * CACHE_LEASE;
+        for (InetSocketAddress adr : holders) {
+            if (val != null)
+                readers.computeIfAbsent(key,
+                        k -> new ConcurrentHashMap<InetSocketAddress, Long>())
+                        .put(adr, until);
+            send(out, adr);
+        }
+        out.recycle();
+    }
+    
+    /**
+     * Ages the counts of gets, then refreshes the replicas of the keys
+     * that are still hot and withdraws those of the keys that have
+     * cooled down to half the rate that made them hot, or that this
+     * server no longer has.
+     */
+    private void refreshReplicas() {
+        heat.halve();
+        for (String key : hotKeys) {
+            int gets = heat.frequency(key);
+            String val = null;
+            long revision = 0;
+            //No join may move the key away in between.
+            rangeLock.readLock().lock();
+            try {
+                if (gets >= hotGets / 2 && isHashInRange(hashit(key))
+                        && !isExpired(key)) {
+                    //The revision first, as in handleGet.
+                    revision = revisions.getOrDefault(key, 0L);
+                    val = map.get(key);
+                }
+                if (val == null)
+                    hotKeys.remove(key);
+                replicate(key, val, revision);
+            } finally {
+                rangeLock.readLock().unlock();
+            }
+        }
+    }
+    
+    /**
+     * Remembers that the relay of a get may cache the reply, so that it
+     * can be told when the pair changes within the cache's lease.
+     * @param p
+     *     the get.
+     */
+    private void addReader(Packet p) {
+        if (p.relayAdr == null || equalInetSocketAddress(p.relayAdr, myAdr))
+            return;
+        //Leave slack for the time the reply takes to reach the relay.
+        readers.computeIfAbsent(p.key,
+                k -> new ConcurrentHashMap<InetSocketAddress, Long>())
+                .put(p.relayAdr, now() + 2 * CACHE_LEASE);
+    }
+    
+    /** Forgets the relays whose leases have run out. */
+    private void sweepReaders() {
+        long now = now();
+        readers.forEach((key, relays) -> {
+            relays.values().removeIf(until -> until <= now);
+            readers.remove(key, Collections.emptyMap());
+        });
+    }
+    
+    /**
+     * Sets or clears the deadline of the key a put or transfer stored,
+     * according to its expires field.
+     * @param p
+     *     the put or transfer packet.
+     */
+    private void setExpiry(Packet p) {
+        setExpiry(p.key, p.val == null ? -1 : p.expires);
+    }
+    
+    /**
+     * Sets or clears the deadline of a key.
+     * @param key
+     *     the key.
+     * @param expires
+     *     seconds the key has left, or -1 to keep it for ever.
+     */
+    private void setExpiry(String key, int expires) {
+        if (expires < 0) {
+            deadlines.remove(key);
+            return;
+        }
+        long deadline = now() + expires * 1000L;
+        deadlines.put(key, deadline);
+        expiries.schedule(key, deadline);
+    }
+    
+    /**
+     * Checks whether a key's deadline has passed.
+     * @param key
+     *     the key.
+     * @return
+     *     true if the key has expired.
+     */
+    private boolean isExpired(String key) {
+        if (deadlines.isEmpty())
+            return false;
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= now();
+    }
+    
+    /**
+     * Stores a pair, logging its deadline with it when the store is
+     * logged, so that it still expires after a restart.
+     * @param key
+     *     the key.
+     * @param val
+     *     the value.
+     * @param expires
+     *     seconds the pair lives, -1 for ever.
+     * @return
+     *     true if the key was not stored before.
+     */
+    private boolean store(String key, String val, int expires) {
+        if (logStore == null)
+            return map.put(key, val);
+        return logStore.put(key, val, expires < 0 ? 0
+                : System.currentTimeMillis() + expires * 1000L);
+    }
+    
+    /**
+     * Removes the pairs whose deadlines have come, as the wheel reaches
+     * them. Deadlines that were changed or cleared after being scheduled
+     * are passed over. The pairs are removed all at once, and a logged
+     * store does not wait for the disk: a removal lost in a crash brings
+     * back a pair whose logged deadline has passed, which goes again.
+     * So the range lock, which keeps puts from changing the pairs
+     * meanwhile, is only held for the work in memory; the relays are
+     * told once it is released. A pair out of range that a transfer
+     * still has to send, or to have acknowledged, is left to it and
+     * looked at again on the next tick.
+     */
+    private void expireKeys() {
+        long now = now();
+        List<String> due = new ArrayList<String>();
+        expiries.advance(now, (key, deadline) -> {
+            if (deadline.equals(deadlines.get(key)))
+                due.add(key);
+        });
+        if (due.isEmpty())
+            return;
+        //No put may change a key between the check and the removal.
+        List<String> gone = new ArrayList<String>();
+        long[] revs;
+        rangeLock.writeLock().lock();
+        try {
+            for (String key : due) {
+                Long deadline = deadlines.get(key);
+                if (deadline == null || deadline > now)
+                    continue;
+                int hash = hashit(key);
+                if (isHashInRange(hash)) {
+                    if (map.get(key) != null)
+                        keyHashes.remove(hash);
+                } else if (transferring(hash)) {
+                    //Not counted here any more; its transfer either
+                    //moves it or leaves it out, and ends.
+                    expiries.schedule(key, deadline);
+                    continue;
+                }
+                deadlines.remove(key);
+                gone.add(key);
+            }
+            if (logStore != null)
+                logStore.discardAll(gone);
+            else
+                map.removeAll(gone);
+            revs = new long[gone.size()];
+            for (int i = 0; i < revs.length; i++)
+                revs[i] = revise(gone.get(i), false);
+        } finally {
+            rangeLock.writeLock().unlock();
+        }
+        for (int i = 0; i < revs.length; i++)
+            invalidateReaders(gone.get(i), revs[i]);
+    }
+    
+    /**
+     * Tells if a hash is in a range that is being moved to another
+     * server.
+     * @param hash
+     *     the hash.
+     * @return
+     *     true if a transfer under way covers the hash.
+     */
+    private boolean transferring(int hash) {
+        for (Transfer t : transfers.values()) {
+            if (t.range.left <= hash && hash <= t.range.right)
+                return true;
+        }
+        return false;
+    }
+    
+    /** The current time in ms, for deadlines; not the time of day. */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+    
     /**
      * Handle a join packet from a prospective DHT node. This function
-     * initializes the out packet as well as halves its hashRange and
+     * initializes the out packet as well as splits its hashRange and
      * sends it to the requesting server, as well as any data that the
      * new server might now be responsible for.
      *
@@ -536,77 +2118,393 @@ public class DhtServer {
      *
      */
     private void handleJoin(Packet out, InetSocketAddress succAdr) {
+        //Gets and puts in range wait until the range has shrunk and the
+        //data has moved.
+        rangeLock.writeLock().lock();
+        try {
+            splitRange(out, succAdr);
+        } finally {
+            rangeLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Gives the upper part of this server's range to a joining server
+     * and transfers the data it is now responsible for. The range is
+     * split where half the keys stored here fall on each side, as
+     * counted by keyHashes, or in the middle if there are too few keys
+     * to go by. Called with the range lock held for writing.
+     *
+     * @param out
+     *            is the received join packet, reused for the reply
+     * @param succAdr
+     *            is the socket address of the joining server
+     */
+    private void splitRange(Packet out, InetSocketAddress succAdr) {
         //Clearing the incoming packet, initializingit to success
         //and no hashRange.
         out.clear();
         out.type = "success";
         out.hashRange = new Pair<Integer, Integer>(0, 0);
         
-        //evaluating the appropriate hashRange difference and setting
-        //it to the outgoing packet.
+        //evaluating the split point and setting the upper part to the
+        //outgoing packet. The two ranges share the split point, which
+        //stays here, so the median's bucket starts one hash above it.
         int rangeDifference = hashRange.right.intValue()
                 - hashRange.left.intValue();
         out.hashRange.right = hashRange.right.intValue();
-        out.hashRange.left = hashRange.left.intValue()
-                + (int) (rangeDifference / 2);
+        int median = keyHashes.median(hashRange.left, hashRange.right);
+        if (median > 0)
+            out.hashRange.left = median - 1;
+        else
+            out.hashRange.left = hashRange.left.intValue()
+                    + (int) (rangeDifference / 2);
         
         
         //Setting the new hashRange maximum.
         hashRange.right = out.hashRange.left;
+        //The new server's revisions start above every one given here,
+        //so that its changes win over the pairs moved to it.
+        out.revision = lastRevision.get();
+        //The keys above it are no longer counted here.
+        if (hashRange.right < out.hashRange.right)
+            keyHashes.clear(hashRange.right + 1, out.hashRange.right);
         
         //setting the successor the output packet.
         out.succInfo = new Pair<InetSocketAddress, Integer>
                                                                         (succInfo.left,succInfo.right.intValue());
         
         //Updating the server's own successor.
-        succInfo.left = succAdr;
-        succInfo.right = out.hashRange.left.intValue();
+        succInfo = new Pair<InetSocketAddress, Integer>(succAdr,
+                out.hashRange.left.intValue());
+        rebuildRouteIndex();
+        //send the packet, before adding the route so that the new server
+        //gets its join reply ahead of any probe.
+        send(out, succAdr);
        	addRoute(succInfo); 
-        //send the packet.
-        out.send(sock, succAdr, debug);
         //transfer any data that the new server is now responsible for.
-        transferData(succAdr);
+        if (hashRange.right < out.hashRange.right)
+            transferData(succAdr, hashRange.right + 1, out.hashRange.right);
     }
     
     /**
-     * Transfers all the data the newly created server is responsible
-     * for.
+     * Starts moving all the data the newly created server is responsible
+     * for. The store finds the pairs by their hash, without looking at
+     * the pairs this server keeps. The pairs go out in numbered batches,
+     * at most XFER_WINDOW of them unacknowledged at a time, and each
+     * pair stays in the store, out of range, until the batch holding it
+     * has been acknowledged. A batch without pairs, sent even when there
+     * are none to move, tells the new server the transfer is over.
      * @param succAdr
      *       address of the newly created server.
+     * @param from
+     *       first hash no longer in this server's range.
+     * @param to
+     *       last hash no longer in this server's range.
      */
-    private void transferData(InetSocketAddress succAdr) {
-        //Create the outgong packet on which to send the pairs.
-        Packet out = new Packet();
-        @SuppressWarnings("rawtypes")
-                Iterator it = map.entrySet().iterator();
-        
-        //Iterate over this server's hashmap/
-        while (it.hasNext()) {
-            @SuppressWarnings("rawtypes")
-                    Map.Entry pair = (Map.Entry) it.next();
-            out.key = (String) pair.getKey();
-            out.val = (String) pair.getValue();
-            
-            //If the key,value pair is no longer in its range,
-            //send it to the newly created server and remove it
-            //from this server's hashmap.
-            if (!isRequestInRange(out)) {
-                out.type = "transfer";
-                out.send(sock, succAdr, debug);
-                it.remove();
+    private void transferData(InetSocketAddress succAdr, int from, int to) {
+        //The keys are listed now; their values are read as the batches
+        //are made, since nothing changes them once out of range.
+        List<String> keys = new ArrayList<String>();
+        map.forRange(from, to, (key, val) -> keys.add(key));
+        Transfer t = new Transfer(new RequestKey(succAdr, from),
+                new Pair<Integer, Integer>(from, to), keys);
+        transfers.put(t.id, t);
+        pump(t);
+    }
+    
+    /**
+     * Sends new batches of a transfer until its window is full or it
+     * has no pairs left, and ends it once every batch is acknowledged.
+     * @param t
+     *       the transfer.
+     */
+    private void pump(Transfer t) {
+        synchronized (t) {
+            while (t.window.size() < XFER_WINDOW) {
+                Batch b = nextBatch(t);
+                if (b == null)
+                    break;
+                t.window.add(b);
+                sendBatch(t, b);
+            }
+            if (t.window.isEmpty()) {
+                transfers.remove(t.id, t);
+                return;
+            }
+            if (t.timer == null)
+                t.timer = timers.schedule(() -> resendBatches(t),
+                        XFER_TIMEOUT << Math.min(t.tries, 4),
+                        TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Packs the next pairs of a transfer into a batch. Each pair is
+     * written as the length of its key, a colon, the key, the length of
+     * its value, a colon, the value, the seconds it has left (-1 for
+     * ever), a colon, its revision and a semicolon. Once the pairs run
+     * out, the last batch has none, not even an empty string.
+     * @param t
+     *       the transfer.
+     * @return
+     *       the batch, or null if the last one was made already.
+     */
+    private Batch nextBatch(Transfer t) {
+        StringBuilder pairs = new StringBuilder();
+        List<String> keys = new ArrayList<String>();
+        long now = now();
+        for (; t.next < t.keys.size(); t.next++) {
+            String key = t.keys.get(t.next);
+            String val = map.get(key);
+            //Pairs that were removed or expired meanwhile are left out.
+            if (val == null || isExpired(key))
+                continue;
+            //Pass on how long the pair has left, rounded up, and its
+            //revision, which the new owner carries on from.
+            Long deadline = deadlines.get(key);
+            int expires = deadline == null ? -1
+                    : (int) Math.max(0, (deadline - now + 999) / 1000);
+            long revision = revisions.getOrDefault(key, 0L);
+            String pair = key.length() + ":" + key + val.length() + ":"
+                    + val + expires + ":" + revision + ";";
+            //A pair too big to share a batch goes on its own.
+            if (pairs.length() > 0
+                    && pairs.length() + pair.length() > XFER_BYTES)
+                break;
+            pairs.append(pair);
+            keys.add(key);
+        }
+        if (keys.isEmpty()) {
+            if (t.ended)
+                return null;
+            t.ended = true;
+            return new Batch(t.nextSeq++, null, keys);
+        }
+        return new Batch(t.nextSeq++, pairs.toString(), keys);
+    }
+    
+    /**
+     * Sends one batch of a transfer.
+     * @param t
+     *       the transfer.
+     * @param b
+     *       the batch.
+     */
+    private void sendBatch(Transfer t, Batch b) {
+        Packet out = Packet.obtain();
+        out.type = "batch";
+        out.hashRange = t.range;
+        out.tag = b.seq;
+        out.val = b.pairs;
+        send(out, t.id.client);
+        out.recycle();
+    }
+    
+    /**
+     * Resends every unacknowledged batch of a transfer that has gone a
+     * timeout without progress, waiting twice as long each time up to
+     * sixteen timeouts. A transfer is never given up, since its range
+     * has already moved and the pairs would be lost; it is reported
+     * every XFER_TRIES timeouts in a row instead.
+     * @param t
+     *       the transfer.
+     */
+    private void resendBatches(Transfer t) {
+        synchronized (t) {
+            t.timer = null;
+            if (t.window.isEmpty())
+                return;
+            if (++t.tries % XFER_TRIES == 0)
+                System.out.println("transfer to " + t.id.client
+                        + " stalled at batch " + t.window.get(0).seq
+                        + ", still trying");
+            for (Batch b : t.window)
+                sendBatch(t, b);
+        }
+        pump(t);
+    }
+    
+    /**
+     * Handles an ack from a server we are moving pairs to: removes the
+     * pairs of every batch it acknowledges from the store, and sends on.
+     * @param in
+     *       the ack; its tag is the number of the next batch expected.
+     * @param sender
+     *       the server moved to.
+     */
+    private void handleAck(Packet in, InetSocketAddress sender) {
+        if (in.hashRange == null)
+            return;
+        Transfer t = transfers.get(new RequestKey(sender,
+                in.hashRange.left));
+        if (t == null)
+            return;
+        List<String> moved = new ArrayList<String>();
+        synchronized (t) {
+            //The last batch moves no keys, but is progress all the same.
+            boolean acked = false;
+            while (!t.window.isEmpty() && t.window.get(0).seq < in.tag) {
+                moved.addAll(t.window.remove(0).keys);
+                acked = true;
+            }
+            if (!acked)
+                return;
+            //Progress: wait a full timeout again from now.
+            t.tries = 0;
+            if (t.timer != null) {
+                t.timer.cancel(false);
+                t.timer = null;
+            }
+        }
+        map.removeAll(moved);
+        for (String key : moved) {
+            deadlines.remove(key);
+            revisions.remove(key);
+            //Relays caching the pair are left to their leases.
+            readers.remove(key);
+            hotKeys.remove(key);
+        }
+        pump(t);
+    }
+    
+    /**
+     * Handles a batch of pairs moved to us by the server we joined
+     * next to. Batches are stored in order, one at a time; one out of
+     * order, or that comes while another is being stored, is dropped.
+     * Either way the sender is told the next batch expected. The last
+     * batch, which has no val, ends the transfer; batches of a transfer
+     * that has ended are only acknowledged again.
+     * @param in
+     *       the batch.
+     * @param sender
+     *       the server moving the pairs.
+     */
+    private void handleBatch(Packet in, InetSocketAddress sender) {
+        if (in.hashRange == null)
+            return;
+        RequestKey id = new RequestKey(sender, in.hashRange.left);
+        Incoming inc = incoming.get(id);
+        int next = in.tag + 1;
+        if (inc != null) {
+            boolean store;
+            synchronized (inc) {
+                store = !inc.storing && in.tag == inc.expected;
+                if (store)
+                    inc.storing = true;
+                next = inc.expected;
+            }
+            //Storing may wait for the disk, so it is done with no lock
+            //held.
+            if (store) {
+                boolean stored = in.val == null || storeBatch(in.val, inc);
+                synchronized (inc) {
+                    inc.storing = false;
+                    if (stored)
+                        inc.expected++;
+                    next = inc.expected;
+                }
+                if (in.val == null)
+                    incoming.remove(id, inc);
             }
         }
+        Packet ack = Packet.obtain();
+        ack.type = "ack";
+        ack.hashRange = in.hashRange;
+        ack.tag = next;
+        send(ack, sender);
+        ack.recycle();
+    }
+    
+    /**
+     * Stores the pairs of a batch, written as nextBatch writes them,
+     * all at once. A pair that was put here with a newer revision while
+     * the batch was on its way is kept instead, and one deleted here
+     * meanwhile stays deleted.
+     * @param pairs
+     *       the batch's pairs.
+     * @param inc
+     *       the transfer the batch is part of.
+     * @return
+     *       true on success, false if the batch is malformed.
+     */
+    private boolean storeBatch(String pairs, Incoming inc) {
+        Map<String, String> vals = new LinkedHashMap<String, String>();
+        Map<String, Integer> expires = new HashMap<String, Integer>();
+        Map<String, Long> revs = new HashMap<String, Long>();
+        try {
+            for (int i = 0; i < pairs.length(); ) {
+                int c = pairs.indexOf(':', i);
+                int len = Integer.parseInt(pairs.substring(i, c));
+                String key = pairs.substring(c + 1, c + 1 + len);
+                i = c + 1 + len;
+                c = pairs.indexOf(':', i);
+                len = Integer.parseInt(pairs.substring(i, c));
+                String val = pairs.substring(c + 1, c + 1 + len);
+                i = c + 1 + len;
+                c = pairs.indexOf(':', i);
+                expires.put(key, Integer.parseInt(pairs.substring(i, c)));
+                i = c + 1;
+                c = pairs.indexOf(';', i);
+                revs.put(key, Long.parseLong(pairs.substring(i, c)));
+                i = c + 1;
+                vals.put(key, val);
+            }
+        } catch (RuntimeException e) {
+            return false;
+        }
+        rangeLock.readLock().lock();
+        try {
+            vals.keySet().removeIf(key ->
+                    revisions.getOrDefault(key, 0L) > revs.get(key)
+                    || inc.tombstones.getOrDefault(key, 0L) > revs.get(key));
+            List<String> added;
+            if (logStore != null) {
+                Map<String, Long> until = new HashMap<String, Long>();
+                long time = System.currentTimeMillis();
+                for (String key : vals.keySet()) {
+                    if (expires.get(key) >= 0)
+                        until.put(key, time + expires.get(key) * 1000L);
+                }
+                added = logStore.putAll(vals, until);
+            } else
+                added = map.putAll(vals);
+            for (String key : added)
+                keyHashes.add(hashit(key));
+            for (String key : vals.keySet()) {
+                setExpiry(key, expires.get(key));
+                long revision = revs.get(key);
+                if (revision != 0) {
+                    revisions.put(key, revision);
+                    lastRevision.accumulateAndGet(revision, Math::max);
+                }
+            }
+        } finally {
+            rangeLock.readLock().unlock();
+        }
+        return true;
     }
     
     /**
      * Handle a transfer packet.
      * Simply accept the packet's key value pair into the new server's
-     * hashmap.
+     * store.
      * @param in
      *            is a transfer packet
      */
     public void handleXfer(Packet in) {
-        map.put(in.key, in.val);
+        rangeLock.readLock().lock();
+        try {
+            if (store(in.key, in.val, in.expires))
+                keyHashes.add(hashit(in.key));
+            setExpiry(in);
+            if (in.revision != 0) {
+                revisions.put(in.key, in.revision);
+                lastRevision.accumulateAndGet(in.revision, Math::max);
+            }
+        } finally {
+            rangeLock.readLock().unlock();
+        }
     }
     
     /**
@@ -623,7 +2521,8 @@ public class DhtServer {
      *         stored routes does change, print the string "rteTbl=" +
      *         rteTbl. (IMPORTANT)
      */
-    private void addRoute(Pair<InetSocketAddress, Integer> newRoute) {
+    private synchronized void addRoute(
+            Pair<InetSocketAddress, Integer> newRoute) {
         Pair<InetSocketAddress,Integer> myPair =
                 new Pair<InetSocketAddress,Integer>(myAdr,hashRange.left);
         
@@ -637,48 +2536,262 @@ public class DhtServer {
             if (element.equals(newRoute))
                 return;
         }
+        //Readers keep using the old table while the copy is changed.
+        List<Pair<InetSocketAddress, Integer>> table =
+                new ArrayList<Pair<InetSocketAddress, Integer>>(rteTbl);
         //Consider the cases when the size of the routing table is at
         //its limit.
-        if (rteTbl.size() >= numRoutes ){
-            if(rteTbl.size() == 1 && rteTbl.get(0).equals(succInfo))
+        if (table.size() >= numRoutes ){
+            if(table.size() == 1 && table.get(0).equals(succInfo))
                 return;
-            int rm_index = rteTbl.get(0).equals(succInfo)? 1:0;
-            rteTbl.remove(rm_index);
+            int rm_index = table.get(0).equals(succInfo)? 1:0;
+            table.remove(rm_index);
         }
         //Add the new route.
         Pair<InetSocketAddress, Integer> routeToAdd = 
                 new Pair<InetSocketAddress, Integer>(new InetSocketAddress(newRoute.left.getAddress(),newRoute.left.getPort()),newRoute.right.intValue());
-        rteTbl.add(routeToAdd);
+        table.add(routeToAdd);
+        rteTbl = Collections.unmodifiableList(table);
+        rebuildRouteIndex();
+        //Find out whether the new route can take binary packets.
+        if (binaryOn && !binaryPeers.contains(routeToAdd.left))
+            sayHello(routeToAdd.left);
         //{Print the debug routing table.
         if (debug)
             System.out.println("rteTbl=" + rteTbl);
     }
     
     /**
-     *Returns the address of the closest server of the given hash.
+     * Looks up the owner of the next finger's start hash, one lookup per
+     * call. The lookup travels the ring like a get for that hash, and
+     * the owner answers this server directly.
+     */
+    private void refreshFinger() {
+        int i = 0, start = 0;
+        for (int n = 0; n < NUM_FINGERS; n++) {
+            i = nextFinger;
+            nextFinger = (i + 1) % NUM_FINGERS;
+            start = (int) ((hashRange.left + (1L << i)) & Integer.MAX_VALUE);
+            if (!isHashInRange(start))
+                break;
+            //Fingers inside our own range point back at us; leave them
+            //out and move on to the next one.
+            setFinger(i, null);
+        }
+        if (isHashInRange(start))
+            return;
+        Packet out = Packet.obtain();
+        out.type = "lookup";
+        out.tag = i;
+        out.hashRange = new Pair<Integer, Integer>(start, start);
+        out.relayAdr = myAdr;
+        out.clientAdr = myAdr;
+        out.senderInfo = new Pair<InetSocketAddress, Integer>(myAdr,
+                hashRange.left);
+        send(out, getClosestServer(start, null));
+        out.recycle();
+    }
+    
+    /**
+     * Handle a lookup packet. A lookup asks for the owner of the hash in
+     * the left end of its hashRange; the owner answers the server that
+     * started the lookup, by adding its own address and first hash as
+     * succInfo. Other servers pass the lookup on, and the server that
+     * started it records the answer as the finger numbered by its tag.
+     *
+     * @param in
+     *            is the lookup packet
+     */
+    private void handleLookup(Packet in) {
+        if (in.hashRange == null || in.relayAdr == null)
+            return;
+        int target = in.hashRange.left;
+        Pair<InetSocketAddress, Integer> me =
+                new Pair<InetSocketAddress, Integer>(myAdr, hashRange.left);
+        if (in.succInfo != null) {
+            //An answer to one of our own lookups.
+            if (equalInetSocketAddress(in.relayAdr, myAdr)
+                    && in.tag >= 0 && in.tag < NUM_FINGERS)
+                setFinger(in.tag, in.succInfo);
+            return;
+        }
+        in.senderInfo = me;
+        if (isHashInRange(target)) {
+            in.succInfo = me;
+            send(in, in.relayAdr);
+        } else
+            send(in, getClosestServer(target, null));
+    }
+    
+    /**
+     * Replaces one entry of the finger table.
+     * @param i
+     *     number of the finger.
+     * @param finger
+     *     the owner of the finger's start hash, or null.
+     */
+    private synchronized void setFinger(int i,
+            Pair<InetSocketAddress, Integer> finger) {
+        if (finger != null && finger.left.equals(myAdr))
+            finger = null;
+        if (Objects.equals(fingers.get(i), finger))
+            return;
+        List<Pair<InetSocketAddress, Integer>> table =
+                new ArrayList<Pair<InetSocketAddress, Integer>>(fingers);
+        table.set(i, finger);
+        fingers = Collections.unmodifiableList(table);
+        rebuildRouteIndex();
+        if (debug)
+            System.out.println("fingers=" + fingers);
+    }
+    
+    /**
+     * Distance from one hash to another, going clockwise around the
+     * ring of hashes in [0,2^31).
+     */
+    private static int clockwise(int from, int to) {
+        return (to - from) & Integer.MAX_VALUE;
+    }
+    
+    /**
+     *Returns the address of the closest server of the given hash: the
+     * known server whose range starts closest before the hash, going
+     * clockwise from this server and wrapping around at 2^31. Forwarding
+     * to that server always moves towards the owner of the hash without
+     * overshooting it. The lookup is a binary search in routeIndex and
+     * takes no locks.
      * @param hash
+     * @param avoid
+     *     a server to be skipped, unless it is the only choice; may be
+     *     null.
      * @return
      *     address of the closest server to the hash.
      */
-    private InetSocketAddress getClosestServer(int hash) {
-        //Let the successor be the base case.
-        int minimum = Math.abs(hash - succInfo.right);
-        int difference;
-        
-        //Calculate the difference between each hash and each
-        //element in the routing table.
-        InetSocketAddress closestAddress = succInfo.left;
-        for (Pair<InetSocketAddress, Integer> element : rteTbl) {
-            difference = Math.abs(hash - element.right);
-            
-            //Choose a new min if it is closer to the hash and it does
-            //not go beyond it.
-            if (difference < minimum) {
-                minimum = difference;
-                closestAddress = element.left;
-            }
+    private InetSocketAddress getClosestServer(int hash,
+            InetSocketAddress avoid) {
+        return routeIndex.closest(hashRange.left, hash, avoid,
+                succInfo.left, latencyOn ? rtt : null);
+    }
+    
+    /**
+     * Sends a "ping" to the next peer in routeIndex, one peer per call.
+     * The tag carries the time it was sent, in microseconds, and comes
+     * back in the peer's "pong", so nothing has to be remembered here.
+     */
+    private void probeLatency() {
+        InetSocketAddress peer = routeIndex.peer(nextProbe++);
+        if (peer == null)
+            return;
+        Packet ping = Packet.obtain();
+        ping.type = "ping";
+        ping.tag = (int) (System.nanoTime() / 1000);
+        ping.senderInfo = new Pair<InetSocketAddress, Integer>(myAdr,
+                hashRange.left);
+        send(ping, peer);
+        ping.recycle();
+    }
+    
+    /**
+     * Folds a round trip sample into a peer's smoothed round trip time,
+     * giving the new sample a weight of 1/8 as TCP does.
+     * @param peer
+     *     the peer that was timed.
+     * @param micros
+     *     the round trip time, in microseconds.
+     */
+    private void sampleRtt(InetSocketAddress peer, long micros) {
+        if (micros < 0)
+            return;
+        rtt.merge(peer, micros, (old, sample) -> old + (sample - old) / 8);
+        if (debug)
+            System.out.println("rtt " + peer + "=" + rtt.get(peer) + "us");
+    }
+    
+    /**
+     * Rebuilds routeIndex from the routing table, the finger table and
+     * the successor.
+     */
+    private synchronized void rebuildRouteIndex() {
+        List<Pair<InetSocketAddress, Integer>> all =
+                new ArrayList<Pair<InetSocketAddress, Integer>>(rteTbl);
+        for (Pair<InetSocketAddress, Integer> finger : fingers) {
+            if (finger != null)
+                all.add(finger);
         }
-        return closestAddress;
+        if (succInfo != null)
+            all.add(succInfo);
+        all.removeIf(route -> route.left.equals(myAdr));
+        routeIndex = new RouteIndex(all);
+        //Forget the round trip times of servers we no longer route to.
+        Set<InetSocketAddress> known = new HashSet<InetSocketAddress>();
+        for (Pair<InetSocketAddress, Integer> route : all)
+            known.add(route.left);
+        rtt.keySet().retainAll(known);
+    }
+    
+    /**
+     * Sends a packet to the destination, in the binary format if binary
+     * mode is on and the destination is known to understand it, and as
+     * ASCII otherwise.
+     * @param p
+     *     packet to be sent.
+     * @param dest
+     *     address of the destination.
+     * @return
+     *     true on success, false on failure.
+     */
+    private boolean send(Packet p, InetSocketAddress dest) {
+        return transmit(p, dest, binaryOn && binaryPeers.contains(dest));
+    }
+    
+    /**
+     * Sends a packet in the given format on the server's socket or, in
+     * nio mode, on its channel.
+     * @param p
+     *     packet to be sent.
+     * @param dest
+     *     address of the destination.
+     * @param binary
+     *     true to send the binary format, false for ASCII.
+     * @return
+     *     true on success, false on failure.
+     */
+    private boolean transmit(Packet p, InetSocketAddress dest,
+            boolean binary) {
+        if (nioOn)
+            return p.send(chan, dest, binary, debug);
+        return p.send(sock, dest, binary, debug);
+    }
+    
+    /**
+     * Receives the next packet on the server's socket or channel, which
+     * must still be in blocking mode.
+     * @param in
+     *     packet into which the datagram is unpacked.
+     * @return
+     *     the sender's address, or null on failure.
+     */
+    private InetSocketAddress receive(Packet in) {
+        if (nioOn)
+            return in.receive(chan, debug);
+        return in.receive(sock, debug);
+    }
+    
+    /**
+     * Sends a binary "hello" probe to a peer. Servers that understand the
+     * binary format answer with a probe of their own, older servers
+     * simply fail to unpack it and drop it.
+     * @param dest
+     *     address of the peer to be probed.
+     */
+    private void sayHello(InetSocketAddress dest) {
+        Packet hello = Packet.obtain();
+        hello.type = "hello";
+        hello.tag = sendTag;
+        hello.senderInfo = new Pair<InetSocketAddress, Integer>(myAdr,
+                hashRange.left);
+        transmit(hello, dest, true);
+        hello.recycle();
     }
     
     /**
@@ -707,7 +2820,7 @@ public class DhtServer {
      *            get/put operation.
      * @return and integer hash value in the interval [0,2^31).
      */
-    public int hashit(String s) {
+    public static int hashit(String s) {
         while (s.length() < 16)
             s += s;
         byte[] sbytes = null;
@@ -731,4 +2844,268 @@ public class DhtServer {
             h = -(h + 1);
         return h;
     }
+    
+    /**
+     * Identifies a client's request by the client's address and the tag
+     * the client chose for it.
+     */
+    private static final class RequestKey {
+        private final InetSocketAddress client;
+        private final int tag;
+        
+        RequestKey(InetSocketAddress client, int tag) {
+            this.client = client;
+            this.tag = tag;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RequestKey))
+                return false;
+            RequestKey k = (RequestKey) o;
+            return tag == k.tag && client.equals(k.client);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * client.hashCode() + tag;
+        }
+    }
+    
+    /**
+     * Pairs being moved to a server that joined after us, sent in
+     * batches that are kept until acknowledged.
+     */
+    private static final class Transfer {
+        final RequestKey id; // receiver and first hash of the range
+        final Pair<Integer, Integer> range; // hashes moved
+        final List<String> keys; // keys to move, in the store's order
+        int next; // position in keys of the next one to batch
+        int nextSeq; // number of the next new batch
+        int tries; // timeouts in a row without progress
+        boolean ended; // the last batch, without pairs, was made
+        //Batches sent and not acknowledged yet, oldest first.
+        final List<Batch> window = new ArrayList<Batch>();
+        ScheduledFuture<?> timer; // next resend, if scheduled
+        
+        Transfer(RequestKey id, Pair<Integer, Integer> range,
+                List<String> keys) {
+            this.id = id;
+            this.range = range;
+            this.keys = keys;
+        }
+    }
+    
+    /**
+     * Pairs being moved to us by the server we joined next to, and the
+     * keys of the range deleted here meanwhile.
+     */
+    private static final class Incoming {
+        final Pair<Integer, Integer> range; // hashes moved
+        int expected; // number of the next batch to store
+        boolean storing; // a batch is being stored
+        //Revisions of the deleted keys, so that a batch still on its
+        //way cannot bring them back.
+        final ConcurrentHashMap<String, Long> tombstones =
+                new ConcurrentHashMap<String, Long>();
+        
+        Incoming(Pair<Integer, Integer> range) {
+            this.range = range;
+        }
+    }
+    
+    /** A numbered batch of pairs, and their keys. */
+    private static final class Batch {
+        final int seq;
+        final String pairs; // null in the last batch
+        final List<String> keys;
+        
+        Batch(int seq, String pairs, List<String> keys) {
+            this.seq = seq;
+            this.pairs = pairs;
+            this.keys = keys;
+        }
+    }
+    
+    /**
+     * A get forwarded on behalf of a client, and the gets for the same
+     * key from other clients that wait for its reply.
+     */
+    private static final class Flight {
+        final RequestKey leader; // client address and tag of the get
+        final long started; // when it was forwarded, in ms
+        volatile boolean open = true; // false once a put for the key passed
+        final List<Packet> followers = new ArrayList<Packet>();
+        volatile ScheduledFuture<?> timer; // ends the flight if it hangs
+        
+        Flight(RequestKey leader, long started) {
+            this.leader = leader;
+            this.started = started;
+        }
+        
+        /** Cancels the flight's timeout, if it is set. */
+        void cancel() {
+            ScheduledFuture<?> t = timer;
+            if (t != null)
+                t.cancel(false);
+        }
+    }
+    
+    /**
+     * A request forwarded on behalf of a client, kept until its reply
+     * passes back through this server.
+     */
+    private static final class Pending {
+        //The request, hop, attempts, sent and timer are only changed with
+        //the entry locked, since the timers and the receivers both
+        //resend it. The entry is locked before the pending table, never
+        //after; cancel needs no lock, for evictions from the table.
+        final Packet request; // copy of the forwarded request
+        InetSocketAddress hop; // server it was last sent to
+        int attempts; // resends so far
+        long sent = System.nanoTime(); // first sent, for timing
+        volatile ScheduledFuture<?> timer; // next resend
+        
+        Pending(Packet request, InetSocketAddress hop) {
+            this.request = request;
+            this.hop = hop;
+        }
+        
+        /** Cancels the next resend, if one is scheduled. */
+        void cancel() {
+            ScheduledFuture<?> t = timer;
+            if (t != null)
+                t.cancel(false);
+        }
+    }
+    
+    /**
+     * Immutable index of known servers sorted by the first hash of their
+     * range, answering "closest server before this hash" by binary
+     * search.
+     */
+    private static final class RouteIndex {
+        private final int[] hashes; // first hashes, ascending
+        private final InetSocketAddress[] adrs; // matching addresses
+        //Servers weighed against each other when choosing by latency.
+        private static final int CANDIDATES = 4;
+        
+        RouteIndex(List<Pair<InetSocketAddress, Integer>> routes) {
+            List<Pair<InetSocketAddress, Integer>> sorted =
+                    new ArrayList<Pair<InetSocketAddress, Integer>>(routes);
+            sorted.sort((a, b) -> Integer.compare(a.right, b.right));
+            hashes = new int[sorted.size()];
+            adrs = new InetSocketAddress[sorted.size()];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = sorted.get(i).right;
+                adrs[i] = sorted.get(i).left;
+            }
+        }
+        
+        /**
+         * Finds the server whose first hash comes last before the
+         * target, without passing back over this server's own first
+         * hash.
+         * @param me
+         *     this server's first hash.
+         * @param hash
+         *     the target hash.
+         * @param avoid
+         *     a server to be skipped; may be null.
+         * @param fallback
+         *     returned if no server qualifies.
+         * @param rtt
+         *     round trip times by server, to pick the nearest of the
+         *     servers that are about as close to the target; null to
+         *     always pick the closest one.
+         */
+        InetSocketAddress closest(int me, int hash, InetSocketAddress avoid,
+                InetSocketAddress fallback,
+                Map<InetSocketAddress, Long> rtt) {
+            int n = hashes.length;
+            if (n == 0)
+                return fallback;
+            //Last index whose hash is <= the target, wrapping around to
+            //the largest hash if there is none.
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (hashes[mid] <= hash)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            int i = lo == 0 ? n - 1 : lo - 1;
+            int target = clockwise(me, hash);
+            //Walk back towards this server, skipping the avoided one.
+            for (int k = 0; k < n; k++, i = i == 0 ? n - 1 : i - 1) {
+                if (clockwise(me, hashes[i]) > target)
+                    break;
+                if (!adrs[i].equals(avoid))
+                    return rtt == null ? adrs[i] : nearest(me, i, avoid, rtt);
+            }
+            return fallback;
+        }
+        
+        /**
+         * Picks the server with the lowest known round trip time among
+         * the closest one and the few before it that make at least 7/8
+         * of its progress around the ring. Servers not timed yet are
+         * only picked if none of the others have been timed either.
+         * @param me
+         *     this server's first hash.
+         * @param i
+         *     position of the closest server.
+         * @param avoid
+         *     a server to be skipped; may be null.
+         * @param rtt
+         *     round trip times by server.
+         */
+        private InetSocketAddress nearest(int me, int i,
+                InetSocketAddress avoid, Map<InetSocketAddress, Long> rtt) {
+            int n = hashes.length;
+            int best = clockwise(me, hashes[i]);
+            int floor = best - best / 8;
+            InetSocketAddress pick = adrs[i];
+            Long pickRtt = rtt.get(pick);
+            for (int k = 1; k < CANDIDATES && k < n; k++) {
+                i = i == 0 ? n - 1 : i - 1;
+                int progress = clockwise(me, hashes[i]);
+                //Stop when too far back, or wrapped past this server.
+                if (progress < floor || progress > best)
+                    break;
+                Long r = rtt.get(adrs[i]);
+                if (r != null && !adrs[i].equals(avoid)
+                        && (pickRtt == null || r < pickRtt)) {
+                    pick = adrs[i];
+                    pickRtt = r;
+                }
+            }
+            return pick;
+        }
+        
+        /**
+         * Returns a server's route, its address and first hash, or the
+         * fallback if the server is not in the index.
+         */
+        Pair<InetSocketAddress, Integer> route(InetSocketAddress adr,
+                Pair<InetSocketAddress, Integer> fallback) {
+            for (int i = 0; i < adrs.length; i++) {
+                if (adrs[i].equals(adr))
+                    return new Pair<InetSocketAddress, Integer>(adrs[i],
+                            hashes[i]);
+            }
+            return fallback;
+        }
+        
+        /**
+         * Returns the server at a position, counted modulo the number of
+         * servers, or null if there are none.
+         */
+        InetSocketAddress peer(int i) {
+            if (adrs.length == 0)
+                return null;
+            return adrs[Math.floorMod(i, adrs.length)];
+        }
+    }
 }
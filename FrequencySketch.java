@@ -0,0 +1,116 @@
+/**
+ * Authors: Carlos Gonzalez, Nicola Pedretti
+ * Washington University in St. Louis
+ * CSE 473: Introduction to Computer Networks
+ * Lab 3
+ *
+ * The FrequencySketch class estimates how often each key has been seen
+ * lately, in a fixed amount of memory, with a count-min sketch: DEPTH
+ * rows of small counters, each row indexed by a different hash of the
+ * key. A key's estimate is the smallest of its counters, which can
+ * only overestimate. Counters stop at a maximum, and once as many keys
+ * have been recorded as the sample size all counters are halved, so
+ * that old popularity fades away; callers may also halve them on a
+ * timer, to count sightings per unit of time.
+ *
+ * Counters are ints, updated with compare-and-set, so any number of
+ * threads may record and estimate at once without a lock. A halving
+ * runs alongside the sightings recorded meanwhile, each of which is
+ * counted either before or after it.
+ **/
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class FrequencySketch {
+
+    private static final int DEPTH = 4; // rows of counters
+    //Odd constants for hashing the key once per row.
+    private static final int[] SEEDS = { 0x9e3779b9, 0x85ebca6b,
+        0xc2b2ae35, 0x27d4eb2f };
+
+    private AtomicIntegerArray[] counts; // DEPTH rows of width counters
+    private int max; // largest count kept
+    private int mask; // width minus one
+    private int sampleSize; // records between halvings
+    private AtomicInteger recorded; // records since the last halving
+
+    /**
+     * Creates a sketch sized for the given number of distinct keys.
+     * @param keys
+     *      roughly how many keys matter at a time, such as the number
+     *      of entries in a cache.
+     */
+    public FrequencySketch(int keys) {
+        this(keys, 15);
+    }
+
+    /**
+     * Creates a sketch sized for the given number of distinct keys,
+     * with counters that stop at the given count.
+     * @param keys
+     *      roughly how many keys matter at a time.
+     * @param max
+     *      largest count kept.
+     */
+    public FrequencySketch(int keys, int max) {
+        this.max = max;
+        int width = Integer.highestOneBit(Math.max(keys, 16) - 1) << 1;
+        counts = new AtomicIntegerArray[DEPTH];
+        for (int i = 0; i < DEPTH; i++)
+            counts[i] = new AtomicIntegerArray(width);
+        mask = width - 1;
+        sampleSize = 10 * width;
+        recorded = new AtomicInteger();
+    }
+
+    /**
+     * Records one sighting of a key.
+     * @param key
+     *      the key.
+     */
+    public void increment(String key) {
+        int h = key.hashCode();
+        for (int i = 0; i < DEPTH; i++) {
+            AtomicIntegerArray row = counts[i];
+            int j = index(h, i);
+            int c;
+            do {
+                c = row.get(j);
+            } while (c < max && !row.compareAndSet(j, c, c + 1));
+        }
+        //Only the sighting that reaches the sample size halves.
+        if (recorded.incrementAndGet() == sampleSize)
+            halve();
+    }
+
+    /**
+     * Estimates how often a key has been seen lately.
+     * @param key
+     *      the key.
+     * @return
+     *      the estimate, from 0 to the largest count kept.
+     */
+    public int frequency(String key) {
+        int h = key.hashCode();
+        int min = max;
+        for (int i = 0; i < DEPTH; i++)
+            min = Math.min(min, counts[i].get(index(h, i)));
+        return min;
+    }
+
+    /** Halves every counter, so that old sightings count for less. */
+    public void halve() {
+        for (AtomicIntegerArray row : counts) {
+            for (int j = 0; j < row.length(); j++)
+                row.getAndUpdate(j, c -> c >> 1);
+        }
+        recorded.updateAndGet(r -> r / 2);
+    }
+
+    /** The counter of row i that a key with hash h maps to. */
+    private int index(int h, int i) {
+        h *= SEEDS[i];
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -24,6 +24,7 @@ public class Generics {
     public final int READ_FILE_ERROR = 3;
     public final int WRITE_FILE_ERROR = 4;
     public final int ERROR_JOINING = 5;
+    public final int CHANNEL_ERROR = 6;
     
     /**
      * Error checking function for input parameters.
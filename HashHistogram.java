@@ -0,0 +1,107 @@
+/**
+ * Authors: Carlos Gonzalez, Nicola Pedretti
+ * Washington University in St. Louis
+ * CSE 473: Introduction to Computer Networks
+ * Lab 3
+ *
+ * The HashHistogram class counts the keys a DhtServer stores by the
+ * hash of the key (DhtServer.hashit), in BUCKETS equal buckets over the
+ * whole hash space. The server adds and removes keys as it stores and
+ * drops them, so when another server joins, the point that splits the
+ * server's keys in half is found by walking the buckets of its range,
+ * without looking at a single key.
+ *
+ * Counts are updated atomically, from any thread. A count may dip
+ * below zero for a moment when a key is removed and put at once, so
+ * negative counts are read as zero.
+ **/
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class HashHistogram {
+
+    private static final int BITS = 16; // log2 of the number of buckets
+    private static final int BUCKETS = 1 << BITS;
+    private static final int SHIFT = 31 - BITS; // hash >>> SHIFT is its bucket
+    //Fewest keys a range must hold for its median to be used; below
+    //that, a few keys would decide how the whole range is split.
+    private static final int MIN_KEYS = 64;
+
+    private AtomicIntegerArray counts; // keys in each bucket
+
+    /** Creates an empty histogram. */
+    public HashHistogram() {
+        counts = new AtomicIntegerArray(BUCKETS);
+    }
+
+    /**
+     * Counts a key that was just stored.
+     * @param hash
+     *      the key's hash.
+     */
+    public void add(int hash) {
+        counts.incrementAndGet(hash >>> SHIFT);
+    }
+
+    /**
+     * Stops counting a key that was just removed.
+     * @param hash
+     *      the key's hash.
+     */
+    public void remove(int hash) {
+        counts.decrementAndGet(hash >>> SHIFT);
+    }
+
+    /**
+     * Forgets the keys of a range of hashes, as when they have been
+     * handed to another server. A bucket the range starts partway into
+     * is shared with hashes below it and keeps its count.
+     * @param from
+     *      first hash to forget.
+     * @param to
+     *      last hash to forget.
+     */
+    public void clear(int from, int to) {
+        int first = (int) ((from + (1L << SHIFT) - 1) >>> SHIFT);
+        for (int b = first; b <= to >>> SHIFT; b++)
+            counts.set(b, 0);
+    }
+
+    /**
+     * Finds the bucket boundary that splits the keys of a range most
+     * evenly.
+     * @param from
+     *      first hash of the range.
+     * @param to
+     *      last hash of the range.
+     * @return
+     *      the first hash of the upper part, strictly above from and
+     *      at most to, or -1 if the range has fewer than MIN_KEYS keys
+     *      or lies within two buckets, too few to choose from.
+     */
+    public int median(int from, int to) {
+        int first = from >>> SHIFT;
+        int last = to >>> SHIFT;
+        if (last - first < 2)
+            return -1;
+        long total = 0;
+        for (int b = first; b <= last; b++)
+            total += Math.max(0, counts.get(b));
+        if (total < MIN_KEYS)
+            return -1;
+        //Stop at the first bucket that brings the lower part to half the
+        //keys; the upper part starts there unless more than half the
+        //keys are in it, in which case it starts after it.
+        long below = 0;
+        for (int b = first; b < last; b++) {
+            long n = Math.max(0, counts.get(b));
+            if (below + n > total / 2) {
+                if (below + n / 2 < total / 2 || b == first)
+                    b++;
+                return b << SHIFT;
+            }
+            below += n;
+        }
+        return last << SHIFT;
+    }
+}
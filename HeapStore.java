@@ -0,0 +1,114 @@
+/**
+ * Authors: Carlos Gonzalez, Nicola Pedretti
+ * Washington University in St. Louis
+ * CSE 473: Introduction to Computer Networks
+ * Lab 3
+ *
+ * The HeapStore class keeps a DhtServer's (key,value) pairs as Strings
+ * in a ConcurrentHashMap on the Java heap. It is the default store.
+ * Alongside the map, a skip list holds every key ordered by its hash,
+ * which is computed once when the key is first put, so the pairs of a
+ * range of hashes are found by walking a slice of the skip list.
+ **/
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+
+public class HeapStore implements Store {
+
+    private ConcurrentHashMap<String, String> map; // key/value pairs
+    private ConcurrentSkipListSet<HashedKey> index; // keys by hash
+
+    /** Creates an empty store. */
+    public HeapStore() {
+        map = new ConcurrentHashMap<String, String>();
+        index = new ConcurrentSkipListSet<HashedKey>();
+    }
+
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    public boolean put(String key, String val) {
+        //Index new keys in the same step that adds them to the map, so
+        //the two always agree.
+        boolean[] added = new boolean[1];
+        map.compute(key, (k, old) -> {
+            if (old == null) {
+                index.add(new HashedKey(DhtServer.hashit(k), k));
+                added[0] = true;
+            }
+            return val;
+        });
+        return added[0];
+    }
+
+    public List<String> putAll(Map<String, String> pairs) {
+        List<String> added = new ArrayList<String>();
+        pairs.forEach((key, val) -> {
+            if (put(key, val))
+                added.add(key);
+        });
+        return added;
+    }
+
+    public boolean remove(String key) {
+        boolean[] removed = new boolean[1];
+        map.computeIfPresent(key, (k, old) -> {
+            index.remove(new HashedKey(DhtServer.hashit(k), k));
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public void removeAll(Collection<String> keys) {
+        for (String key : keys)
+            remove(key);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void forEach(BiConsumer<String, String> action) {
+        map.forEach(action);
+    }
+
+    public void forRange(int from, int to,
+            BiConsumer<String, String> action) {
+        for (HashedKey hk : index.tailSet(new HashedKey(from, ""))) {
+            if (hk.hash > to)
+                break;
+            String val = map.get(hk.key);
+            //Leave out keys removed meanwhile.
+            if (val != null)
+                action.accept(hk.key, val);
+        }
+    }
+
+    /**
+     * A key with its hash, ordered by hash first and by key among keys
+     * with the same hash.
+     */
+    private static final class HashedKey implements Comparable<HashedKey> {
+        final int hash;
+        final String key;
+
+        HashedKey(int hash, String key) {
+            this.hash = hash;
+            this.key = key;
+        }
+
+        public int compareTo(HashedKey o) {
+            if (hash != o.hash)
+                return Integer.compare(hash, o.hash);
+            return key.compareTo(o.key);
+        }
+    }
+}
@@ -0,0 +1,648 @@
+/**
+ * Authors: Carlos Gonzalez, Nicola Pedretti
+ * Washington University in St. Louis
+ * CSE 473: Introduction to Computer Networks
+ * Lab 3
+ *
+ * The LogStore class makes another store durable. Every put and remove
+ * is appended to a log file in a directory of its own, and only returns
+ * once the log has been forced to disk. A single committer thread does
+ * the writing, so all the changes made while it was busy with the last
+ * batch go out together with one fsync (group commit).
+ *
+ * Every so often the committer starts a new log file and the whole
+ * store is written to a snapshot, through memory-mapped chunks; once
+ * the snapshot is in place, and its name is on disk, the older logs are
+ * deleted. The snapshot is taken while the store keeps changing, but
+ * every change made during it is also in the new log, so replaying that
+ * log on top of it gives the right result. The pairs are copied a slice
+ * of the hash space at a time and written out from the copy, so the
+ * store is only held up for the copying, never for the disk.
+ *
+ * A pair may be put with a deadline, the time of day it lasts until,
+ * which is logged and snapshotted with it, so that a pair counting down
+ * keeps counting down across restarts; the store only keeps deadlines,
+ * and leaves removing the pairs to its user.
+ *
+ * When the store is opened, the snapshot's chunks are mapped and loaded
+ * in parallel, and the logs written since are replayed in order. A log
+ * ends at the first record whose checksum does not match, which is
+ * where a crash cut it off.
+ *
+ * The files in the directory are:
+ *
+ *  snapshot	a header (MAGIC_UNTIL and the chunk size, as ints) followed
+ *		by chunks of CHUNK bytes; each chunk holds records made of
+ *		the key's length and the value's length as ints, the pair's
+ *		deadline as a long (0 for none), then the key's and the
+ *		value's ASCII bytes, ended by a length of -1 or by the end of
+ *		the chunk; snapshots headed by MAGIC, written before there
+ *		were deadlines, have records without one
+ *  log.N	log number N; each record holds a CRC32 of the rest of the
+ *		record as an int, then PUT, PUT_UNTIL or REMOVE as a byte,
+ *		then the key's length and the value's length as ints, then,
+ *		for PUT_UNTIL, the pair's deadline as a long, then the key's
+ *		and the value's ASCII bytes
+ **/
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+public class LogStore implements Store {
+
+    private static final int MAGIC = 0x44485453; // "DHTS"
+    private static final int MAGIC_UNTIL = 0x44485455; // "DHTU"
+    private static final int CHUNK = 64 << 20; // snapshot chunk, bytes
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte PUT_UNTIL = 3;
+    //Longest key plus value believed when replaying, far more than a
+    //packet can carry; longer ones can only be damage.
+    private static final int MAX_RECORD = 1 << 20;
+    //A snapshot is taken once the log has this many bytes, or once it
+    //has any and SNAPSHOT_INTERVAL ms have gone by.
+    private static final long SNAPSHOT_BYTES = 64 << 20;
+    private static final long SNAPSHOT_INTERVAL = 60000;
+    //Pairs copied out of the store at a time for a snapshot, roughly.
+    private static final int SLICE_PAIRS = 4096;
+
+    private Store inner; // the pairs themselves
+    //Deadlines of the pairs that have one, as times of day in ms.
+    private ConcurrentHashMap<String, Long> deadlines;
+    private File dir; // where the snapshot and the logs are kept
+    private FileChannel log; // the current log
+    private int logNumber; // number of the current log
+    private long logBytes; // bytes written to logs since the snapshot
+    private long lastSnapshot; // when the last snapshot was started
+    private boolean snapshotting; // a snapshot is being written
+    private ByteBuffer batch; // changes waiting for the committer
+    private long appended; // changes appended to batch so far
+    private volatile long durable; // changes forced to disk so far
+    //Threads waiting for their changes to reach the disk wait on this,
+    //apart from the store's lock, so they are woken only when durable
+    //moves and appending does not contend with them.
+    private final Object flushed = new Object();
+    private CRC32 crc = new CRC32();
+    private Generics gen = new Generics();
+
+    /**
+     * Opens a durable store, loading the pairs saved in the directory
+     * into the inner store, and starts its committer thread.
+     * @param inner
+     *      an empty store to hold the pairs.
+     * @param dir
+     *      the directory holding the snapshot and the logs; created if
+     *      it does not exist.
+     * @throws IOException
+     *      if the directory cannot be read or the new log not created.
+     */
+    public LogStore(Store inner, File dir) throws IOException {
+        this.inner = inner;
+        this.dir = dir;
+        deadlines = new ConcurrentHashMap<String, Long>();
+        dir.mkdirs();
+        batch = ByteBuffer.allocate(1 << 16);
+
+        //Load the snapshot, then replay every log left since.
+        File snapshot = new File(dir, "snapshot");
+        if (snapshot.exists())
+            loadSnapshot(snapshot);
+        for (int n : logNumbers()) {
+            replay(new File(dir, "log." + n));
+            logNumber = n;
+            logBytes += new File(dir, "log." + n).length();
+        }
+
+        //New changes go to a new log.
+        logNumber++;
+        log = openLog(logNumber);
+        lastSnapshot = System.currentTimeMillis();
+
+        Thread committer = new Thread(this::commitLoop, "log-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    public String get(String key) {
+        return inner.get(key);
+    }
+
+    public boolean put(String key, String val) {
+        return put(key, val, 0);
+    }
+
+    /**
+     * Stores a pair with a deadline, replacing the key's old value and
+     * deadline if it had them.
+     * @param key
+     *      the key.
+     * @param val
+     *      the value, which must not be null.
+     * @param until
+     *      the time of day, in ms, the pair lasts until; 0 for ever.
+     * @return
+     *      true if the key was not stored before.
+     */
+    public boolean put(String key, String val, long until) {
+        long seq;
+        boolean added;
+        synchronized (this) {
+            seq = append(key, val, until);
+            added = inner.put(key, val);
+        }
+        awaitDurable(seq);
+        return added;
+    }
+
+    public List<String> putAll(Map<String, String> pairs) {
+        return putAll(pairs, Collections.<String, Long>emptyMap());
+    }
+
+    /**
+     * Stores several pairs with deadlines, as put would one by one, but
+     * waiting for the disk once for all of them.
+     * @param pairs
+     *      the keys and their values, which must not be null.
+     * @param until
+     *      the deadlines of the pairs that have one, as times of day in
+     *      ms.
+     * @return
+     *      the keys that were not stored before.
+     */
+    public List<String> putAll(Map<String, String> pairs,
+            Map<String, Long> until) {
+        long seq;
+        List<String> added = new ArrayList<String>();
+        synchronized (this) {
+            pairs.forEach((key, val) -> {
+                append(key, val, until.getOrDefault(key, 0L));
+                if (inner.put(key, val))
+                    added.add(key);
+            });
+            seq = appended;
+        }
+        awaitDurable(seq);
+        return added;
+    }
+
+    public boolean remove(String key) {
+        long seq;
+        boolean removed;
+        synchronized (this) {
+            seq = append(REMOVE, key, "");
+            deadlines.remove(key);
+            removed = inner.remove(key);
+        }
+        awaitDurable(seq);
+        return removed;
+    }
+
+    /** Waits for the disk once for all the keys. */
+    public void removeAll(Collection<String> keys) {
+        awaitDurable(discardAll(keys));
+    }
+
+    /**
+     * Removes several keys without waiting for the disk, for pairs that
+     * may just as well come back after a crash, such as pairs whose
+     * logged deadline has passed.
+     * @param keys
+     *      the keys to remove.
+     * @return
+     *      the number of the last change, which is on disk once the
+     *      change numbered that is.
+     */
+    public long discardAll(Collection<String> keys) {
+        synchronized (this) {
+            for (String key : keys) {
+                append(REMOVE, key, "");
+                deadlines.remove(key);
+                inner.remove(key);
+            }
+            return appended;
+        }
+    }
+
+    /**
+     * Hands every pair's deadline to the action, as loaded or as last
+     * put.
+     * @param action
+     *      receives each key that has a deadline and the deadline, as a
+     *      time of day in ms.
+     */
+    public void forEachDeadline(BiConsumer<String, Long> action) {
+        deadlines.forEach(action);
+    }
+
+    public int size() {
+        return inner.size();
+    }
+
+    public void forEach(BiConsumer<String, String> action) {
+        inner.forEach(action);
+    }
+
+    public void forRange(int from, int to,
+            BiConsumer<String, String> action) {
+        inner.forRange(from, to, action);
+    }
+
+    /**
+     * Appends a change to the batch for the committer. Must be called
+     * with this store locked, in the same block that makes the change,
+     * so the log holds the changes in the order they were made.
+     * @return the change's sequence number.
+     */
+    private long append(byte op, String key, String val) {
+        return append(op, key, val, 0);
+    }
+
+    /**
+     * Appends a put, with its deadline if it has one, and notes the
+     * deadline. As for the other appends, this store must be locked.
+     * @return the change's sequence number.
+     */
+    private long append(String key, String val, long until) {
+        if (until == 0) {
+            deadlines.remove(key);
+            return append(PUT, key, val, 0);
+        }
+        deadlines.put(key, until);
+        return append(PUT_UNTIL, key, val, until);
+    }
+
+    /** Appends a record; until is only written for PUT_UNTIL. */
+    private long append(byte op, String key, String val, long until) {
+        byte[] k = key.getBytes(StandardCharsets.US_ASCII);
+        byte[] v = val.getBytes(StandardCharsets.US_ASCII);
+        int len = 13 + (op == PUT_UNTIL ? 8 : 0) + k.length + v.length;
+        if (batch.remaining() < len) {
+            ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.max(batch.capacity() * 2, batch.position() + len));
+            batch.flip();
+            batch = bigger.put(batch);
+        }
+        int start = batch.position();
+        //Only an empty batch can have the committer waiting for it.
+        if (start == 0)
+            notifyAll();
+        batch.putInt(0).put(op).putInt(k.length).putInt(v.length);
+        if (op == PUT_UNTIL)
+            batch.putLong(until);
+        batch.put(k).put(v);
+        crc.reset();
+        crc.update(batch.array(), start + 4, len - 4);
+        batch.putInt(start, (int) crc.getValue());
+        return ++appended;
+    }
+
+    /** Waits until the change with the given sequence number is on disk. */
+    private void awaitDurable(long seq) {
+        if (durable >= seq)
+            return;
+        boolean interrupted = false;
+        synchronized (flushed) {
+            while (durable < seq) {
+                try {
+                    flushed.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Body of the committer thread: writes out each batch of changes
+     * and forces it to disk, then lets the waiting threads go on. Also
+     * starts the snapshots. A failure to write the log is fatal, since
+     * changes could no longer be made durable.
+     */
+    private void commitLoop() {
+        ByteBuffer spare = ByteBuffer.allocate(batch.capacity());
+        while (true) {
+            ByteBuffer out;
+            long seq;
+            boolean snapshot;
+            synchronized (this) {
+                while (batch.position() == 0 && !snapshotDue()) {
+                    try {
+                        wait(SNAPSHOT_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                //Swap in an empty batch, so new changes need not wait
+                //for the write.
+                out = batch;
+                batch = spare.capacity() >= out.capacity() ? spare
+                        : ByteBuffer.allocate(out.capacity());
+                seq = appended;
+                snapshot = snapshotDue();
+                if (snapshot)
+                    snapshotting = true;
+            }
+            try {
+                out.flip();
+                logBytes += out.remaining();
+                while (out.hasRemaining())
+                    log.write(out);
+                log.force(false);
+                if (snapshot) {
+                    //Start a new log; the snapshot covers the old ones.
+                    log.close();
+                    log = openLog(++logNumber);
+                    int upTo = logNumber;
+                    logBytes = 0;
+                    Thread t = new Thread(() -> snapshot(upTo),
+                            "log-snapshot");
+                    t.setDaemon(true);
+                    t.start();
+                }
+            } catch (IOException e) {
+                System.out.println("Error writing to the log: " + e);
+                System.exit(gen.WRITE_FILE_ERROR);
+            }
+            out.clear();
+            spare = out;
+            synchronized (flushed) {
+                if (seq > durable) {
+                    durable = seq;
+                    flushed.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** @return true if a snapshot should be started now. */
+    private boolean snapshotDue() {
+        if (snapshotting || logBytes + batch.position() == 0)
+            return false;
+        return logBytes + batch.position() >= SNAPSHOT_BYTES
+                || System.currentTimeMillis() - lastSnapshot
+                        >= SNAPSHOT_INTERVAL;
+    }
+
+    /**
+     * Writes every pair to a new snapshot, puts it in place of the old
+     * one and deletes the logs it covers.
+     * @param upTo
+     *      number of the first log not covered by the snapshot.
+     */
+    private void snapshot(int upTo) {
+        File tmp = new File(dir, "snapshot.tmp");
+        try {
+            new SnapshotWriter(tmp).write();
+            Files.move(tmp.toPath(), new File(dir, "snapshot").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            //Until the rename is on disk, a crash may bring back the old
+            //snapshot, which needs the logs.
+            try (FileChannel d = FileChannel.open(dir.toPath(),
+                    StandardOpenOption.READ)) {
+                d.force(true);
+            }
+            for (int n : logNumbers()) {
+                if (n < upTo)
+                    new File(dir, "log." + n).delete();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            //The logs are kept, so nothing is lost; try again later.
+            System.out.println("Error writing a snapshot: " + e);
+        }
+        synchronized (this) {
+            snapshotting = false;
+            lastSnapshot = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Loads a snapshot into the inner store, mapping its chunks and
+     * decoding them in parallel.
+     */
+    private void loadSnapshot(File snapshot) throws IOException {
+        try (FileChannel ch = FileChannel.open(snapshot.toPath(),
+                StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+            int magic = size < 8 ? 0 : header.getInt(0);
+            if (magic != MAGIC && magic != MAGIC_UNTIL)
+                throw new IOException("not a snapshot: " + snapshot);
+            boolean withUntil = magic == MAGIC_UNTIL;
+            int chunk = header.getInt(4);
+            //Chunks are never written bigger than CHUNK.
+            if (chunk <= 0 || chunk > CHUNK)
+                throw new IOException("bad chunk size " + chunk + ": "
+                        + snapshot);
+            int chunks = (int) ((size - 8 + chunk - 1) / chunk);
+            try {
+                IntStream.range(0, chunks).parallel().forEach(i -> {
+                    long from = 8 + (long) i * chunk;
+                    try {
+                        loadChunk(ch.map(FileChannel.MapMode.READ_ONLY,
+                                from, Math.min(chunk, size - from)),
+                                withUntil);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Puts every record of a mapped snapshot chunk in the inner store.
+     * @param withUntil
+     *      true if the records hold deadlines.
+     */
+    private void loadChunk(MappedByteBuffer buf, boolean withUntil) {
+        while (buf.remaining() >= 8) {
+            int klen = buf.getInt();
+            if (klen < 0)
+                break;
+            int vlen = buf.getInt();
+            long until = withUntil ? buf.getLong() : 0;
+            byte[] k = new byte[klen];
+            byte[] v = new byte[vlen];
+            buf.get(k).get(v);
+            String key = new String(k, StandardCharsets.US_ASCII);
+            inner.put(key, new String(v, StandardCharsets.US_ASCII));
+            if (until != 0)
+                deadlines.put(key, until);
+        }
+    }
+
+    /**
+     * Applies the records of a log to the inner store, up to the end of
+     * the log or the first damaged record.
+     */
+    private void replay(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            byte[] rest = new byte[1 << 10];
+            while (true) {
+                int sum = in.readInt();
+                byte op = in.readByte();
+                int klen = in.readInt();
+                int vlen = in.readInt();
+                if (klen < 0 || vlen < 0 || klen + (long) vlen > MAX_RECORD)
+                    return;
+                long until = op == PUT_UNTIL ? in.readLong() : 0;
+                int at = op == PUT_UNTIL ? 17 : 9; // where the key starts
+                int len = at + klen + vlen;
+                if (rest.length < len)
+                    rest = new byte[len];
+                ByteBuffer head = ByteBuffer.wrap(rest).put(op).putInt(klen)
+                        .putInt(vlen);
+                if (op == PUT_UNTIL)
+                    head.putLong(until);
+                in.readFully(rest, at, klen + vlen);
+                crc.reset();
+                crc.update(rest, 0, len);
+                if ((int) crc.getValue() != sum)
+                    return;
+                String key = new String(rest, at, klen,
+                        StandardCharsets.US_ASCII);
+                if (op == PUT || op == PUT_UNTIL) {
+                    inner.put(key, new String(rest, at + klen, vlen,
+                            StandardCharsets.US_ASCII));
+                    if (until != 0)
+                        deadlines.put(key, until);
+                    else
+                        deadlines.remove(key);
+                } else {
+                    inner.remove(key);
+                    deadlines.remove(key);
+                }
+            }
+        } catch (EOFException e) {
+            //The end of the log, possibly in the middle of a record.
+        }
+    }
+
+    /** @return the numbers of the logs in the directory, ascending. */
+    private List<Integer> logNumbers() {
+        List<Integer> numbers = new ArrayList<Integer>();
+        String[] names = dir.list();
+        if (names == null)
+            return numbers;
+        for (String name : names) {
+            if (!name.startsWith("log."))
+                continue;
+            try {
+                numbers.add(Integer.parseInt(name.substring(4)));
+            } catch (NumberFormatException e) {
+                //Not one of ours.
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /** Creates log number n, empty, for appending. */
+    private FileChannel openLog(int n) throws IOException {
+        return FileChannel.open(new File(dir, "log." + n).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Writes the inner store's pairs to a snapshot file, one mapped
+     * chunk at a time.
+     */
+    private class SnapshotWriter {
+        private File file;
+        private FileChannel ch;
+        private MappedByteBuffer buf; // the chunk being filled
+        private long chunkStart; // file offset of the chunk
+
+        SnapshotWriter(File file) {
+            this.file = file;
+        }
+
+        /** Writes the snapshot and forces it to disk. */
+        void write() throws IOException {
+            try (FileChannel c = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ch = c;
+                MappedByteBuffer header =
+                        ch.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+                header.putInt(MAGIC_UNTIL).putInt(CHUNK);
+                header.force();
+                chunkStart = 8;
+                buf = ch.map(FileChannel.MapMode.READ_WRITE, chunkStart,
+                        CHUNK);
+                //Copy a slice of the hash space at a time, each of about
+                //SLICE_PAIRS pairs, and write it out once copied.
+                int slices = Integer.highestOneBit(
+                        Math.max(1, inner.size() / SLICE_PAIRS));
+                long width = (1L << 31) / Math.min(slices, 1 << 16);
+                List<String> copy = new ArrayList<String>();
+                for (long from = 0; from < 1L << 31; from += width) {
+                    inner.forRange((int) from, (int) (from + width - 1),
+                            (key, val) -> {
+                                copy.add(key);
+                                copy.add(val);
+                            });
+                    for (int i = 0; i < copy.size(); i += 2)
+                        add(copy.get(i), copy.get(i + 1));
+                    copy.clear();
+                }
+                //The last chunk simply ends with the file.
+                long end = chunkStart + buf.position();
+                buf.force();
+                buf = null;
+                ch.truncate(end);
+                ch.force(true);
+            }
+        }
+
+        /** Adds a pair, moving on to a new chunk if it does not fit. */
+        private void add(String key, String val) {
+            byte[] k = key.getBytes(StandardCharsets.US_ASCII);
+            byte[] v = val.getBytes(StandardCharsets.US_ASCII);
+            long until = deadlines.getOrDefault(key, 0L);
+            try {
+                if (buf.remaining() < 16 + k.length + v.length) {
+                    if (buf.remaining() >= 4)
+                        buf.putInt(-1);
+                    buf.force();
+                    chunkStart += CHUNK;
+                    buf = ch.map(FileChannel.MapMode.READ_WRITE, chunkStart,
+                            CHUNK);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buf.putInt(k.length).putInt(v.length).putLong(until).put(k)
+                    .put(v);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/**
+ * Authors: Carlos Gonzalez, Nicola Pedretti
+ * Washington University in St. Louis
+ * CSE 473: Introduction to Computer Networks
+ * Lab 3
+ *
+ * The OffHeapStore class keeps a DhtServer's (key,value) pairs outside
+ * the Java heap, as raw ASCII bytes in direct buffers, so that millions
+ * of pairs cost the garbage collector next to nothing.
+ *
+ * Pairs are appended to an arena, one record per pair: the key's length,
+ * the value's length, the key's hash and the offset of the next record
+ * in the same bucket (see below) as ints, then the key's bytes and the
+ * value's bytes. An open addressing table with linear probing maps keys
+ * to their records; each slot holds the record's offset in the arena
+ * and the key's hash, so most mismatches are rejected without touching
+ * the arena. Replaced and removed records are left behind as garbage,
+ * with a hash of -1, and squeezed out when the arena fills up.
+ *
+ * The hash is the DHT's own (DhtServer.hashit). A server only owns a
+ * slice of the hash space, so a key's first slot to probe is given by
+ * the top bits of its hash times an odd constant, which spreads the
+ * slice over the whole table. To find the pairs of a range of hashes
+ * without looking at the others, the records are also chained into
+ * BUCKETS buckets by the top bits of their hash; the chains of the
+ * range's buckets are walked, passing over the garbage in them, which
+ * the next squeeze drops.
+ *
+ * Gets share a read lock, so they run in parallel; puts and removes
+ * take the write lock.
+ **/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+public class OffHeapStore implements Store {
+
+    //Slot offsets below FIRST are not records: a fresh slot is EMPTY
+    //and the slot of a removed pair is DELETED.
+    private static final int EMPTY = 0;
+    private static final int DELETED = 1;
+    private static final int FIRST = 8; // offset of the first record
+    private static final int SLOT = 8; // record offset and key hash
+    //Key length, value length, hash, and next record in the bucket.
+    private static final int HEADER = 16;
+    private static final int DEAD = -1; // hash of a garbage record
+    private static final int MIX = 0x9e3779b9; // odd, spreads the hashes
+    private static final int BUCKET_BITS = 16; // log2 of the buckets
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+
+    private ByteBuffer slots; // the table, capacity slots of SLOT bytes
+    private int capacity; // number of slots, a power of two
+    private int shift; // hash * MIX >>> shift is the first slot to probe
+    private int live; // slots holding a pair
+    private int used; // slots holding a pair or DELETED
+    private ByteBuffer arena; // the records
+    private ByteBuffer buckets; // first record of each bucket's chain
+    private int top; // end of the last record
+    private long garbage; // bytes of replaced and removed records
+    private ReentrantReadWriteLock lock;
+
+    /** Creates an empty store with room for a few thousand pairs. */
+    public OffHeapStore() {
+        this(1 << 12, 1 << 20);
+    }
+
+    /**
+     * Creates an empty store. Both the table and the arena grow as
+     * needed.
+     * @param slotCount
+     *      initial number of slots, rounded up to a power of two.
+     * @param arenaBytes
+     *      initial size of the arena, in bytes.
+     */
+    public OffHeapStore(int slotCount, int arenaBytes) {
+        capacity = Integer.highestOneBit(Math.max(slotCount, 16) - 1) << 1;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        slots = ByteBuffer.allocateDirect(capacity * SLOT);
+        arena = ByteBuffer.allocateDirect(Math.max(arenaBytes, 1 << 10));
+        buckets = ByteBuffer.allocateDirect(BUCKETS * 4);
+        top = FIRST;
+        lock = new ReentrantReadWriteLock();
+    }
+
+    public String get(String key) {
+        byte[] k = key.getBytes(StandardCharsets.US_ASCII);
+        int h = DhtServer.hashit(key);
+        lock.readLock().lock();
+        try {
+            int i = find(k, h);
+            if (i < 0)
+                return null;
+            return value(slots.getInt(i * SLOT));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean put(String key, String val) {
+        byte[] k = key.getBytes(StandardCharsets.US_ASCII);
+        byte[] v = val.getBytes(StandardCharsets.US_ASCII);
+        int h = DhtServer.hashit(key);
+        lock.writeLock().lock();
+        try {
+            int i = find(k, h);
+            if (i >= 0) {
+                //Replace the record; the old one becomes garbage. It is
+                //counted after the append, which may compact the arena,
+                //moving the old record and forgetting earlier garbage.
+                int rec = append(k, v, h);
+                kill(slots.getInt(i * SLOT));
+                slots.putInt(i * SLOT, rec);
+                return false;
+            }
+            //Keep at most 3/4 of the slots in use, so probes stay short.
+            if ((used + 1) * 4L > capacity * 3L)
+                rehash(live * 4L > capacity ? capacity * 2 : capacity);
+            int rec = append(k, v, h);
+            i = home(h);
+            while (slots.getInt(i * SLOT) >= FIRST)
+                i = (i + 1) & (capacity - 1);
+            if (slots.getInt(i * SLOT) == EMPTY)
+                used++;
+            live++;
+            slots.putInt(i * SLOT, rec);
+            slots.putInt(i * SLOT + 4, h);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(String key) {
+        byte[] k = key.getBytes(StandardCharsets.US_ASCII);
+        int h = DhtServer.hashit(key);
+        lock.writeLock().lock();
+        try {
+            int i = find(k, h);
+            if (i < 0)
+                return false;
+            delete(i);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<String> putAll(Map<String, String> pairs) {
+        List<String> added = new ArrayList<String>();
+        pairs.forEach((key, val) -> {
+            if (put(key, val))
+                added.add(key);
+        });
+        return added;
+    }
+
+    public void removeAll(Collection<String> keys) {
+        for (String key : keys)
+            remove(key);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Holds the read lock throughout, so puts wait until it is done. */
+    public void forEach(BiConsumer<String, String> action) {
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < capacity; i++) {
+                int rec = slots.getInt(i * SLOT);
+                if (rec >= FIRST)
+                    action.accept(ascii(rec + HEADER, arena.getInt(rec)),
+                            value(rec));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walks the chains of the buckets the range's hashes fall in,
+     * leaving out garbage and, in the first and last bucket, the
+     * records outside the range. Holds the read lock throughout, like
+     * forEach.
+     */
+    public void forRange(int from, int to,
+            BiConsumer<String, String> action) {
+        lock.readLock().lock();
+        try {
+            for (int b = bucket(from); b <= bucket(to); b++) {
+                for (int rec = buckets.getInt(b * 4); rec != 0;
+                        rec = arena.getInt(rec + 12)) {
+                    //Garbage has a hash of -1, outside every range.
+                    int h = arena.getInt(rec + 8);
+                    if (h < from || h > to)
+                        continue;
+                    action.accept(ascii(rec + HEADER, arena.getInt(rec)),
+                            value(rec));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the slot holding a key.
+     * @param k
+     *      the key's bytes.
+     * @param h
+     *      the key's hash.
+     * @return
+     *      the slot's number, or -1 if the key is not stored.
+     */
+    private int find(byte[] k, int h) {
+        int mask = capacity - 1;
+        for (int i = home(h); ; i = (i + 1) & mask) {
+            int rec = slots.getInt(i * SLOT);
+            if (rec == EMPTY)
+                return -1;
+            if (rec != DELETED && slots.getInt(i * SLOT + 4) == h
+                    && sameKey(rec, k))
+                return i;
+        }
+    }
+
+    /** Marks a slot DELETED, leaving its record behind as garbage. */
+    private void delete(int i) {
+        kill(slots.getInt(i * SLOT));
+        slots.putInt(i * SLOT, DELETED);
+        live--;
+    }
+
+    /** Turns a record no slot will point to any more into garbage. */
+    private void kill(int rec) {
+        garbage += length(rec);
+        arena.putInt(rec + 8, DEAD);
+    }
+
+    /** The first slot to probe for a key with hash h. */
+    private int home(int h) {
+        return (h * MIX) >>> shift;
+    }
+
+    /** The bucket of a hash. */
+    private static int bucket(int h) {
+        return h >>> (31 - BUCKET_BITS);
+    }
+
+    /** Adds a record at the head of its bucket's chain. */
+    private void chain(int rec, int h) {
+        int b = bucket(h) * 4;
+        arena.putInt(rec + 12, buckets.getInt(b));
+        buckets.putInt(b, rec);
+    }
+
+    /** Compares the key of a record with the given bytes. */
+    private boolean sameKey(int rec, byte[] k) {
+        if (arena.getInt(rec) != k.length)
+            return false;
+        for (int j = 0; j < k.length; j++) {
+            if (arena.get(rec + HEADER + j) != k[j])
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the value of a record. */
+    private String value(int rec) {
+        return ascii(rec + HEADER + arena.getInt(rec), arena.getInt(rec + 4));
+    }
+
+    /** Returns the total length of a record, in bytes. */
+    private int length(int rec) {
+        return HEADER + arena.getInt(rec) + arena.getInt(rec + 4);
+    }
+
+    /** Decodes len bytes of the arena, starting at from. */
+    private String ascii(int from, int len) {
+        byte[] b = new byte[len];
+        arena.get(from, b);
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Appends a record to the arena, making room first if needed, and
+     * chains it into its bucket.
+     * @return the record's offset.
+     */
+    private int append(byte[] k, byte[] v, int h) {
+        long len = (long) HEADER + k.length + v.length;
+        if (top + len > arena.capacity())
+            makeRoom(len);
+        int rec = top;
+        arena.putInt(rec, k.length);
+        arena.putInt(rec + 4, v.length);
+        arena.putInt(rec + 8, h);
+        chain(rec, h);
+        arena.put(rec + HEADER, k);
+        arena.put(rec + HEADER + k.length, v);
+        top += (int) len;
+        return rec;
+    }
+
+    /**
+     * Makes room for a record of len bytes, by squeezing out garbage if
+     * at least half the arena is garbage, and otherwise by moving the
+     * records to an arena twice the size. Either way the chains are
+     * made anew, without the garbage. A single arena holds at most 2GB.
+     */
+    private void makeRoom(long len) {
+        long need = top - garbage + len;
+        long size = arena.capacity();
+        if (garbage * 2 < size || need > size) {
+            while (size < need * 2 && size < Integer.MAX_VALUE)
+                size *= 2;
+            size = Math.min(size, Integer.MAX_VALUE);
+        }
+        if (need > size)
+            throw new IllegalStateException("off-heap store is full");
+        ByteBuffer old = arena;
+        arena = ByteBuffer.allocateDirect((int) size);
+        buckets = ByteBuffer.allocateDirect(BUCKETS * 4);
+        top = FIRST;
+        garbage = 0;
+        for (int i = 0; i < capacity; i++) {
+            int rec = slots.getInt(i * SLOT);
+            if (rec < FIRST)
+                continue;
+            int n = HEADER + old.getInt(rec) + old.getInt(rec + 4);
+            arena.put(top, old, rec, n);
+            slots.putInt(i * SLOT, top);
+            chain(top, slots.getInt(i * SLOT + 4));
+            top += n;
+        }
+    }
+
+    /**
+     * Moves every pair to a fresh table, which also clears out the
+     * DELETED slots.
+     * @param size
+     *      number of slots in the new table.
+     */
+    private void rehash(int size) {
+        ByteBuffer old = slots;
+        int oldCapacity = capacity;
+        capacity = size;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        slots = ByteBuffer.allocateDirect(capacity * SLOT);
+        for (int i = 0; i < oldCapacity; i++) {
+            int rec = old.getInt(i * SLOT);
+            if (rec < FIRST)
+                continue;
+            int h = old.getInt(i * SLOT + 4);
+            int j = home(h);
+            while (slots.getInt(j * SLOT) != EMPTY)
+                j = (j + 1) & (capacity - 1);
+            slots.putInt(j * SLOT, rec);
+            slots.putInt(j * SLOT + 4, h);
+        }
+        used = live;
+    }
+}
@@ -11,9 +11,12 @@
  **/
 
 import java.net.*;
-import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /** Class for working with DHT packets. */
 public class Packet {
@@ -30,12 +33,133 @@ public class Packet {
     public Pair<Integer, Integer> hashRange; // range of hash values
     public Pair<InetSocketAddress, Integer> senderInfo;//address, first hash
     public Pair<InetSocketAddress, Integer> succInfo; //address, first hash
+    public int version; // wire format the packet was received in
+    public int expires; // seconds a put's pair lives, -1 for ever
+    public long revision; // owner's revision of the pair, 0 if unknown
+    
+    //Wire formats: the original ASCII text and the compact binary v2.
+    public static final int ASCII_VERSION = 1;
+    public static final int BINARY_VERSION = 2;
+    
+    //Largest packet we send, and the receive buffer size.
+    public static final int MAX_LEN = 1400;
+    private static final int RECEIVE_LEN = 2000;
+    
+    //Most packets kept around for reuse, by all threads together.
+    private static final int POOL_SIZE = 256;
+    
+    //Packets for reuse, shared by all threads, since a packet is often
+    //obtained by one thread and recycled by another, as when a receiver
+    //hands it to a worker.
+    private static final Pool<Packet> PACKETS = new Pool<Packet>(POOL_SIZE);
+    
+    //Most sets of buffers kept around for reuse.
+    private static final int BUFFERS_SIZE = 64;
+    
+    //Receive and send buffers, borrowed for each send and receive, so
+    //that these allocate nothing in the steady state. They are pooled
+    //rather than kept per thread since, with a thread per request, each
+    //thread would allocate its own buffers and then throw them away.
+    private static final Pool<Buffers> BUFFERS =
+            new Pool<Buffers>(BUFFERS_SIZE);
+    
+    //First byte of every binary packet; ASCII packets start with 'C'.
+    private static final byte MAGIC = (byte) 0xD2;
+    
+    //Presence bits for the optional fields of a binary packet.
+    private static final int HAS_KEY = 1;
+    private static final int HAS_VAL = 1 << 1;
+    private static final int HAS_REASON = 1 << 2;
+    private static final int HAS_CLIENT_ADR = 1 << 3;
+    private static final int HAS_RELAY_ADR = 1 << 4;
+    private static final int HAS_HASH_RANGE = 1 << 5;
+    private static final int HAS_SENDER_INFO = 1 << 6;
+    private static final int HAS_SUCC_INFO = 1 << 7;
+    private static final int HAS_EXPIRES = 1 << 8;
+    private static final int HAS_REVISION = 1 << 9;
+    
+    //Identifying line and field names, matched byte by byte in unpack.
+    private static final byte[] HEADER = bytes("CSE473 DHTPv0.2015");
+    private static final byte[] TYPE = bytes("type");
+    private static final byte[] TTL = bytes("ttl");
+    private static final byte[] KEY = bytes("key");
+    private static final byte[] VAL = bytes("val");
+    private static final byte[] REASON = bytes("reason");
+    private static final byte[] TAG = bytes("tag");
+    private static final byte[] CLIENT_ADR = bytes("clientAdr");
+    private static final byte[] RELAY_ADR = bytes("relayAdr");
+    private static final byte[] HASH_RANGE = bytes("hashRange");
+    private static final byte[] SUCC_INFO = bytes("succInfo");
+    private static final byte[] SENDER_INFO = bytes("senderInfo");
+    private static final byte[] EXPIRES = bytes("expires");
+    private static final byte[] REVISION = bytes("revision");
+    
+    //Known packet types, shared so decoding does not allocate them.
+    //The binary opcode of a type is its index plus one, so new types
+    //must only ever be appended.
+    private static final String[] TYPES = { "get", "put", "success",
+        "failure", "no match", "transfer", "join", "hello", "lookup",
+        "ping", "pong", "referral", "delivered", "invalidate",
+        "replica", "batch", "ack" };
+    private static final byte[][] TYPE_BYTES = new byte[TYPES.length][];
+    static {
+        for (int i = 0; i < TYPES.length; i++)
+            TYPE_BYTES[i] = bytes(TYPES[i]);
+    }
     
     /** Constructor, initializes fields to default values. */
     public Packet() {
         clear();
     }
     
+    /**
+     * Creates a copy of this packet. The pairs and addresses are shared
+     * with the original, not duplicated, so neither packet may change
+     * them in place afterwards.
+     *
+     * @return a new packet with the same field values
+     */
+    public Packet copy() {
+        Packet p = new Packet();
+        p.type = type;
+        p.ttl = ttl;
+        p.key = key;
+        p.val = val;
+        p.reason = reason;
+        p.clientAdr = clientAdr;
+        p.relayAdr = relayAdr;
+        p.tag = tag;
+        p.hashRange = hashRange;
+        p.senderInfo = senderInfo;
+        p.succInfo = succInfo;
+        p.version = version;
+        p.expires = expires;
+        p.revision = revision;
+        return p;
+    }
+    
+    /**
+     * Takes a cleared packet from the shared pool, or creates a new one
+     * if the pool is empty. Packets obtained this way should be handed
+     * back with recycle once they are no longer needed, by any thread.
+     *
+     * @return a packet with all fields at their default values
+     */
+    public static Packet obtain() {
+        Packet p = PACKETS.take();
+        return p == null ? new Packet() : p;
+    }
+    
+    /**
+     * Clears the packet and returns it to the shared pool, unless the
+     * pool is full. The packet must not be used by the caller
+     * afterwards.
+     */
+    public void recycle() {
+        clear();
+        PACKETS.give(this);
+    }
+    
     /**
      * Initialize all packet fields. Initializes all fields with a 
      * standard initial value or makes them undefined.
@@ -52,6 +176,9 @@ public class Packet {
         hashRange = null;
         senderInfo = null;
         succInfo = null;
+        version = ASCII_VERSION;
+        expires = -1;
+        revision = 0;
     }
     
     /**
@@ -63,19 +190,224 @@ public class Packet {
      *         containing the packet payload.
      */
     public byte[] pack() {
-        if (type == null)
+        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN);
+        if (!encode(buf, false))
             return null;
-        byte[] buf;
-        try {
-            buf = toString().getBytes("US-ASCII");
-        } catch (Exception e) {
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+    
+    /**
+     * Pack attributes defining packet fields into the binary (v2) format.
+     * Packets whose type has no opcode are packed as ASCII instead.
+     *
+     * @return null on failure, otherwise a byte array 
+     *         containing the packet payload.
+     */
+    public byte[] packBinary() {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN);
+        if (!encode(buf, true))
             return null;
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+    
+    /**
+     * Pack attributes defining packet fields into the given buffer,
+     * starting at its position. Nothing is allocated on the way, so the
+     * same buffer can be reused for every packet sent.
+     *
+     * @param buf
+     *            buffer receiving the packet; its remaining space bounds
+     *            the packet length
+     * @param binary
+     *            if true the binary (v2) format is used, as long as the
+     *            type has an opcode
+     * @return true on success, false if the type is undefined, an
+     *         address is unresolved or the packet does not fit in the
+     *         buffer
+     */
+    public boolean encode(ByteBuffer buf, boolean binary) {
+        if (type == null)
+            return false;
+        //An unresolved address has no bytes to write.
+        if (unresolved(relayAdr) || unresolved(clientAdr)
+                || senderInfo != null && unresolved(senderInfo.left)
+                || succInfo != null && unresolved(succInfo.left))
+            return false;
+        try {
+            int opcode = opcode(type);
+            if (binary && opcode != 0)
+                encodeBinary(buf, opcode);
+            else
+                encodeAscii(buf);
+        } catch (BufferOverflowException e) {
+            return false;
         }
-        if (buf.length > 1400)
-            return null;
+        return true;
+    }
+    
+    /**
+     * Writes the packet in the ASCII text format, one field per line and
+     * in the same order as toString.
+     */
+    private void encodeAscii(ByteBuffer buf) {
+        buf.put(HEADER).put((byte) '\n');
+        if (type != null)
+            putLine(putAscii(putName(buf, TYPE), type));
+        if (key != null)
+            putLine(putAscii(putName(buf, KEY), key));
+        if (relayAdr != null)
+            putLine(putHostPort(putName(buf, RELAY_ADR), relayAdr));
+        if (hashRange != null) {
+            putName(buf, HASH_RANGE);
+            putDecimal(buf, hashRange.left).put((byte) ':');
+            putLine(putDecimal(buf, hashRange.right));
+        }
+        if (senderInfo != null) {
+            putHostPort(putName(buf, SENDER_INFO), senderInfo.left);
+            putLine(putDecimal(buf.put((byte) ':'), senderInfo.right));
+        }
+        if (val != null)
+            putLine(putAscii(putName(buf, VAL), val));
+        if (expires != -1)
+            putLine(putDecimal(putName(buf, EXPIRES), expires));
+        if (revision != 0)
+            putLine(putDecimal(putName(buf, REVISION), revision));
+        if (reason != null)
+            putLine(putAscii(putName(buf, REASON), reason));
+        if (clientAdr != null)
+            putLine(putHostPort(putName(buf, CLIENT_ADR), clientAdr));
+        if (tag != -1)
+            putLine(putDecimal(putName(buf, TAG), tag));
+        if (succInfo != null) {
+            putHostPort(putName(buf, SUCC_INFO), succInfo.left);
+            putLine(putDecimal(buf.put((byte) ':'), succInfo.right));
+        }
+        if (ttl != -1)
+            putLine(putDecimal(putName(buf, TTL), ttl));
+    }
+    
+    /**
+     * Writes the packet in the binary (v2) format. Numbers are written as
+     * fixed-width big-endian ints, addresses as their raw 4 or 16 address
+     * bytes plus port, strings are length prefixed and the type becomes
+     * a one byte opcode.
+     */
+    private void encodeBinary(ByteBuffer buf, int opcode) {
+        int flags = (key != null ? HAS_KEY : 0)
+                | (val != null ? HAS_VAL : 0)
+                | (reason != null ? HAS_REASON : 0)
+                | (clientAdr != null ? HAS_CLIENT_ADR : 0)
+                | (relayAdr != null ? HAS_RELAY_ADR : 0)
+                | (hashRange != null ? HAS_HASH_RANGE : 0)
+                | (senderInfo != null ? HAS_SENDER_INFO : 0)
+                | (succInfo != null ? HAS_SUCC_INFO : 0)
+                | (expires != -1 ? HAS_EXPIRES : 0)
+                | (revision != 0 ? HAS_REVISION : 0);
+        buf.put(MAGIC).put((byte) BINARY_VERSION).put((byte) opcode);
+        buf.putShort((short) flags).putInt(ttl).putInt(tag);
+        if (key != null)
+            putString(buf, key);
+        if (val != null)
+            putString(buf, val);
+        if (reason != null)
+            putString(buf, reason);
+        if (clientAdr != null)
+            putAddress(buf, clientAdr);
+        if (relayAdr != null)
+            putAddress(buf, relayAdr);
+        if (hashRange != null)
+            buf.putInt(hashRange.left).putInt(hashRange.right);
+        if (senderInfo != null)
+            putAddress(buf, senderInfo.left).putInt(senderInfo.right);
+        if (succInfo != null)
+            putAddress(buf, succInfo.left).putInt(succInfo.right);
+        if (expires != -1)
+            buf.putInt(expires);
+        if (revision != 0)
+            buf.putLong(revision);
+    }
+    
+    /** Writes a field name followed by its colon. */
+    private static ByteBuffer putName(ByteBuffer buf, byte[] name) {
+        return buf.put(name).put((byte) ':');
+    }
+    
+    /** Ends a field line. */
+    private static void putLine(ByteBuffer buf) {
+        buf.put((byte) '\n');
+    }
+    
+    /**
+     * Writes a String as ASCII, replacing anything outside ASCII with
+     * '?' just like String.getBytes("US-ASCII") does.
+     */
+    private static ByteBuffer putAscii(ByteBuffer buf, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+                continue;
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1)))
+                i++;
+            buf.put((byte) '?');
+        }
+        return buf;
+    }
+    
+    /** Writes a number in decimal without going through a String. */
+    private static ByteBuffer putDecimal(ByteBuffer buf, long n) {
+        long v = n;
+        if (v < 0) {
+            buf.put((byte) '-');
+            v = -v;
+        }
+        long div = 1;
+        while (div <= v / 10)
+            div *= 10;
+        for (; div > 0; div /= 10)
+            buf.put((byte) ('0' + (v / div) % 10));
         return buf;
     }
     
+    /** Writes an address as "ip:port", IPv4 in dotted decimal. */
+    private static ByteBuffer putHostPort(ByteBuffer buf,
+            InetSocketAddress adr) {
+        InetAddress ip = adr.getAddress();
+        if (ip instanceof Inet4Address) {
+            byte[] octets = ip.getAddress();
+            for (int i = 0; i < octets.length; i++) {
+                if (i > 0)
+                    buf.put((byte) '.');
+                putDecimal(buf, octets[i] & 0xff);
+            }
+        } else {
+            putAscii(buf, ip.getHostAddress());
+        }
+        return putDecimal(buf.put((byte) ':'), adr.getPort());
+    }
+    
+    /** Writes a length-prefixed ASCII string. */
+    private static void putString(ByteBuffer buf, String s) {
+        int lenAt = buf.position();
+        putAscii(buf.putShort((short) 0), s);
+        buf.putShort(lenAt, (short) (buf.position() - lenAt - 2));
+    }
+    
+    /** Tells if an address is set but was never resolved. */
+    private static boolean unresolved(InetSocketAddress adr) {
+        return adr != null && adr.getAddress() == null;
+    }
+    
+    /** Writes an address as its length, raw address bytes and port. */
+    private static ByteBuffer putAddress(ByteBuffer buf,
+            InetSocketAddress adr) {
+        byte[] ip = adr.getAddress().getAddress();
+        return buf.put((byte) ip.length).put(ip)
+                .putShort((short) adr.getPort());
+    }
+    
     /**
      * Basic validity checking for received packets.
      *
@@ -95,6 +427,16 @@ public class Packet {
             case "no match":
             case "transfer":
             case "join":
+            case "hello":
+            case "lookup":
+            case "ping":
+            case "pong":
+            case "referral":
+            case "delivered":
+            case "invalidate":
+            case "replica":
+            case "batch":
+            case "ack":
                 break;
             default:
                 reason = "unrecognizable input";
@@ -113,109 +455,399 @@ public class Packet {
      *            is the number of valid bytes in buf
      */
     public boolean unpack(byte[] buf, int bufLen) {
-        String packet;
+        return unpack(ByteBuffer.wrap(buf, 0, bufLen));
+    }
+    
+    /**
+     * Unpack attributes defining packet fields from the bytes between
+     * the buffer's position and limit. The packet is decoded in a single
+     * pass over the raw bytes: field names are matched byte by byte and
+     * numbers are parsed in place, so only the key, val and reason
+     * fields ever become new Strings. The buffer's position is left
+     * unchanged.
+     *
+     * @param buf
+     *            is a heap or direct buffer holding the DHT packet
+     * @return true on success, false if any line is malformed
+     */
+    public boolean unpack(ByteBuffer buf) {
+        int pos = buf.position();
+        int end = buf.limit();
+        if (pos == end)
+            return false;
+        if (buf.get(pos) == MAGIC)
+            return unpackBinary(buf);
         try {
-            packet = new String(buf, 0, bufLen, "US-ASCII");
+            while (pos < end) {
+                int eol = pos;
+                while (eol < end && buf.get(eol) != '\n')
+                    eol++;
+                //Blank lines are only allowed at the very end.
+                if (eol == pos) {
+                    while (eol < end && buf.get(eol) == '\n')
+                        eol++;
+                    return eol == end;
+                }
+                if (!decodeLine(buf, pos, eol))
+                    return false;
+                pos = eol + 1;
+            }
         } catch (Exception e) {
             return false;
         }
-        String[] lines = packet.split("\n");
-        for (String line : lines) {
-            ArrayList<String> input = parseInput(line);
-            if (input == null)
+        return true;
+    }
+    
+    /**
+     * Unpack attributes from a binary (v2) packet, as written by
+     * packBinary.
+     *
+     * @param buf
+     *            buffer holding the packet between position and limit
+     * @return true on success, false if the packet is truncated or
+     *         carries an unknown version or opcode
+     */
+    private boolean unpackBinary(ByteBuffer buf) {
+        int pos = buf.position();
+        try {
+            if (buf.get(pos + 1) != BINARY_VERSION)
+                return false;
+            int opcode = buf.get(pos + 2) & 0xff;
+            if (opcode < 1 || opcode > TYPES.length)
+                return false;
+            type = TYPES[opcode - 1];
+            int flags = buf.getShort(pos + 3);
+            ttl = buf.getInt(pos + 5);
+            tag = buf.getInt(pos + 9);
+            pos += 13;
+            if ((flags & HAS_KEY) != 0) {
+                int len = buf.getShort(pos) & 0xffff;
+                key = ascii(buf, pos + 2, pos + 2 + len);
+                pos += 2 + len;
+            }
+            if ((flags & HAS_VAL) != 0) {
+                int len = buf.getShort(pos) & 0xffff;
+                val = ascii(buf, pos + 2, pos + 2 + len);
+                pos += 2 + len;
+            }
+            if ((flags & HAS_REASON) != 0) {
+                int len = buf.getShort(pos) & 0xffff;
+                reason = ascii(buf, pos + 2, pos + 2 + len);
+                pos += 2 + len;
+            }
+            if ((flags & HAS_CLIENT_ADR) != 0) {
+                clientAdr = getAddress(buf, pos);
+                pos += 3 + buf.get(pos);
+            }
+            if ((flags & HAS_RELAY_ADR) != 0) {
+                relayAdr = getAddress(buf, pos);
+                pos += 3 + buf.get(pos);
+            }
+            if ((flags & HAS_HASH_RANGE) != 0) {
+                hashRange = new Pair<Integer, Integer>(buf.getInt(pos),
+                        buf.getInt(pos + 4));
+                pos += 8;
+            }
+            if ((flags & HAS_SENDER_INFO) != 0) {
+                InetSocketAddress adr = getAddress(buf, pos);
+                pos += 3 + buf.get(pos);
+                senderInfo = new Pair<InetSocketAddress, Integer>(adr,
+                        buf.getInt(pos));
+                pos += 4;
+            }
+            if ((flags & HAS_SUCC_INFO) != 0) {
+                InetSocketAddress adr = getAddress(buf, pos);
+                pos += 3 + buf.get(pos);
+                succInfo = new Pair<InetSocketAddress, Integer>(adr,
+                        buf.getInt(pos));
+                pos += 4;
+            }
+            if ((flags & HAS_EXPIRES) != 0) {
+                expires = buf.getInt(pos);
+                pos += 4;
+            }
+            if ((flags & HAS_REVISION) != 0) {
+                revision = buf.getLong(pos);
+                pos += 8;
+            }
+            if (pos > buf.limit())
                 return false;
-            assignValue(input);
+        } catch (Exception e) {
+            return false;
         }
+        version = BINARY_VERSION;
         return true;
     }
     
+    /** Reads an address written by putAddress at the given index. */
+    private static InetSocketAddress getAddress(ByteBuffer buf, int pos)
+            throws UnknownHostException {
+        byte[] ip = new byte[buf.get(pos)];
+        for (int i = 0; i < ip.length; i++)
+            ip[i] = buf.get(pos + 1 + i);
+        int port = buf.getShort(pos + 1 + ip.length) & 0xffff;
+        return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+    }
+    
+    /** Binary opcode of a packet type, or 0 if the type is unknown. */
+    private static int opcode(String type) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type))
+                return i + 1;
+        }
+        return 0;
+    }
+    
     /**
-     * parseInput allows for easy recognition of the commands
-     * input in the command line, and their matchign property in
-     * the packet object.
+     * Decodes a single "name:value" line of an ASCII packet and assigns
+     * the value to the matching packet field.
      *
-     * @param input
-     *        input to be parsed
-     * @return
+     * @param buf
+     *        buffer holding the packet
+     * @param from
+     *        index of the first byte of the line
+     * @param to
+     *        index just past the last byte of the line
+     * @return true if the line was recognized, false otherwise
+     * @throws UnknownHostException if an address field is unresolvable
      */
-    private ArrayList<String> parseInput(String input) {
-        
-        ArrayList<String> matches = new ArrayList<String>();
-        //Identify the required inputs by using regex and
-        //iterating over the entire input.
-        String[] regExs = { "(CSE473 DHTPv0.2015)",
-            "(type|ttl|key|val|reason|tag):(.+)",
-            "(clientAdr|relayAdr|hashRange):([^:]+):([^:]+)",
-            "(succInfo|senderInfo):([^:]+):([^:]+):([^:]+)" };
-        for (int numGroups = 0; numGroups < regExs.length; numGroups++) {
-            Pattern pattern = Pattern.compile(regExs[numGroups]);
-            Matcher match = pattern.matcher(input);
-            int group = 0;
-            if (match.matches()) {
-                while (++group > 0) {
-                    try {
-                        matches.add(match.group(group));
-                    } catch (Exception e) {
-                        break;
-                    }
+    private boolean decodeLine(ByteBuffer buf, int from, int to)
+            throws UnknownHostException {
+        int colon = indexOf(buf, ':', from, to);
+        if (colon < 0)
+            return matches(buf, from, to, HEADER);
+        int v = colon + 1;
+        switch (colon - from) {
+            case 3:
+                if (matches(buf, from, colon, KEY)) {
+                    if (v == to) return false;
+                    key = ascii(buf, v, to);
+                    return true;
                 }
-            }
+                if (matches(buf, from, colon, TTL)) {
+                    ttl = parseInt(buf, v, to);
+                    return true;
+                }
+                if (matches(buf, from, colon, VAL)) {
+                    if (v == to) return false;
+                    val = ascii(buf, v, to);
+                    return true;
+                }
+                if (matches(buf, from, colon, TAG)) {
+                    tag = parseInt(buf, v, to);
+                    return true;
+                }
+                return false;
+            case 4:
+                if (matches(buf, from, colon, TYPE)) {
+                    if (v == to) return false;
+                    type = typeName(buf, v, to);
+                    return true;
+                }
+                return false;
+            case 6:
+                if (matches(buf, from, colon, REASON)) {
+                    if (v == to) return false;
+                    reason = ascii(buf, v, to);
+                    return true;
+                }
+                return false;
+            case 7:
+                if (matches(buf, from, colon, EXPIRES)) {
+                    expires = parseInt(buf, v, to);
+                    return true;
+                }
+                return false;
+            case 8:
+                if (matches(buf, from, colon, RELAY_ADR)) {
+                    relayAdr = parseAddress(buf, v, to);
+                    return true;
+                }
+                if (matches(buf, from, colon, SUCC_INFO)) {
+                    succInfo = parseInfo(buf, v, to);
+                    return true;
+                }
+                if (matches(buf, from, colon, REVISION)) {
+                    revision = parseLong(buf, v, to);
+                    return true;
+                }
+                return false;
+            case 9:
+                if (matches(buf, from, colon, CLIENT_ADR)) {
+                    clientAdr = parseAddress(buf, v, to);
+                    return true;
+                }
+                if (matches(buf, from, colon, HASH_RANGE)) {
+                    int sep = indexOf(buf, ':', v, to);
+                    if (sep < 0 || indexOf(buf, ':', sep + 1, to) >= 0)
+                        return false;
+                    hashRange = new Pair<Integer, Integer>(
+                            parseInt(buf, v, sep), parseInt(buf, sep + 1, to));
+                    return true;
+                }
+                return false;
+            case 10:
+                if (matches(buf, from, colon, SENDER_INFO)) {
+                    senderInfo = parseInfo(buf, v, to);
+                    return true;
+                }
+                return false;
+            default:
+                return false;
         }
-        return matches.size() > 0 ? matches : null;
     }
     
     /**
-     * Given an aArrayList of Strings, it parses each of its
-     * elements and inputs them in the appropriate Packet parameter.
+     * Parses an "ip:port" value without going through DNS when the
+     * host is a dotted IPv4 literal.
      */
-    private void assignValue(ArrayList<String> line) {
-        switch (line.get(0)) {
-            case "CSE473 DHTPv0.2015":
-                break;
-            case "type":
-                type = line.size()< 1? null : line.get(1);
-                break;
-            case "key":
-                key = line.size()< 1? null :line.get(1);
-                break;
-            case "ttl":
-                ttl = line.size()< 1? null : Integer.parseInt(line.get(1));
-                break;
-            case "val":
-                val = line.size()< 1? null :line.get(1);
-                break;
-            case "reason":
-                reason = line.size()< 1? null :line.get(1);
-                break;
-            case "tag":
-                tag = line.size()< 1? null :Integer.parseInt(line.get(1));
-                break;
-            case "relayAdr":
-                relayAdr = new InetSocketAddress(line.get(1),
-                        Integer.parseInt(line.get(2)));
-                break;
-            case "clientAdr":
-                clientAdr = new InetSocketAddress(line.get(1),
-                        Integer.parseInt(line.get(2)));
-                break;
-            case "succInfo":
-                succInfo = new Pair<InetSocketAddress, Integer>(
-                        new InetSocketAddress(line.get(1),
-                                Integer.parseInt(line
-                                .get(2))), Integer.parseInt(line.get(3)));
-                break;
-            case "senderInfo":
-                senderInfo = new Pair<InetSocketAddress, Integer>(
-                        new InetSocketAddress(line.get(1), 
-                                Integer.parseInt(line
-                                .get(2))), Integer.parseInt(line.get(3)));
-                break;
-            case "hashRange":
-                hashRange = new Pair<Integer, Integer>(
-                        Integer.parseInt(line.get(1)),
-                        Integer.parseInt(line.get(2)));
+    private static InetSocketAddress parseAddress(ByteBuffer buf, int from,
+            int to) throws UnknownHostException {
+        int sep = indexOf(buf, ':', from, to);
+        if (sep <= from || indexOf(buf, ':', sep + 1, to) >= 0)
+            throw new NumberFormatException("bad address");
+        return address(buf, from, sep, parseInt(buf, sep + 1, to));
+    }
+    
+    /**
+     * Parses an "ip:port:hash" value as used by succInfo and senderInfo.
+     */
+    private static Pair<InetSocketAddress, Integer> parseInfo(ByteBuffer buf,
+            int from, int to) throws UnknownHostException {
+        int sep1 = indexOf(buf, ':', from, to);
+        int sep2 = sep1 < 0 ? -1 : indexOf(buf, ':', sep1 + 1, to);
+        if (sep1 <= from || sep2 < 0 || indexOf(buf, ':', sep2 + 1, to) >= 0)
+            throw new NumberFormatException("bad address");
+        return new Pair<InetSocketAddress, Integer>(
+                address(buf, from, sep1, parseInt(buf, sep1 + 1, sep2)),
+                parseInt(buf, sep2 + 1, to));
+    }
+    
+    /**
+     * Builds a socket address from the host bytes in [from,to). Dotted
+     * IPv4 literals are converted directly into their four raw bytes,
+     * anything else is left to InetSocketAddress to resolve.
+     */
+    private static InetSocketAddress address(ByteBuffer buf, int from,
+            int to, int port) throws UnknownHostException {
+        byte[] ip = new byte[4];
+        int octet = 0, digits = 0, value = 0;
+        for (int i = from; i <= to; i++) {
+            byte b = i < to ? buf.get(i) : (byte) '.';
+            if (b >= '0' && b <= '9' && digits < 3) {
+                value = value * 10 + (b - '0');
+                digits++;
+            } else if (b == '.' && digits > 0 && value < 256 && octet < 4) {
+                ip[octet++] = (byte) value;
+                value = digits = 0;
+            } else {
+                octet = -1;
                 break;
+            }
+        }
+        if (octet == 4)
+            return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+        return new InetSocketAddress(ascii(buf, from, to), port);
+    }
+    
+    /**
+     * Parses a signed decimal integer from the bytes in [from,to).
+     *
+     * @throws NumberFormatException if the bytes are not a valid int
+     */
+    private static int parseInt(ByteBuffer buf, int from, int to) {
+        if (from >= to)
+            throw new NumberFormatException("empty number");
+        boolean negative = false;
+        byte first = buf.get(from);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++from == to)
+                throw new NumberFormatException("sign without digits");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9)
+                throw new NumberFormatException("not a digit");
+            value = value * 10 + d;
+            if (value > (long) Integer.MAX_VALUE + 1)
+                throw new NumberFormatException("number too large");
+        }
+        if (negative)
+            value = -value;
+        if (value > Integer.MAX_VALUE)
+            throw new NumberFormatException("number too large");
+        return (int) value;
+    }
+    
+    /**
+     * Parses an unsigned decimal long from the bytes in [from,to).
+     *
+     * @throws NumberFormatException if the bytes are not a valid long
+     */
+    private static long parseLong(ByteBuffer buf, int from, int to) {
+        if (from >= to)
+            throw new NumberFormatException("empty number");
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9)
+                throw new NumberFormatException("not a digit");
+            if (value > (Long.MAX_VALUE - d) / 10)
+                throw new NumberFormatException("number too large");
+            value = value * 10 + d;
+        }
+        return value;
+    }
+    
+    /**
+     * Returns the shared constant for a known packet type, so the
+     * common types are never allocated on the receive path.
+     */
+    private static String typeName(ByteBuffer buf, int from, int to) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (matches(buf, from, to, TYPE_BYTES[i]))
+                return TYPES[i];
+        }
+        return ascii(buf, from, to);
+    }
+    
+    /** True if the bytes in [from,to) are exactly those of name. */
+    private static boolean matches(ByteBuffer buf, int from, int to,
+            byte[] name) {
+        if (to - from != name.length)
+            return false;
+        for (int i = 0; i < name.length; i++) {
+            if (buf.get(from + i) != name[i])
+                return false;
         }
+        return true;
+    }
+    
+    /** Index of the first occurrence of c in [from,to), or -1. */
+    private static int indexOf(ByteBuffer buf, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == c)
+                return i;
+        }
+        return -1;
+    }
+    
+    /** Copies the bytes in [from,to) into a new ASCII String. */
+    private static String ascii(ByteBuffer buf, int from, int to) {
+        if (buf.hasArray())
+            return new String(buf.array(), buf.arrayOffset() + from,
+                    to - from, StandardCharsets.US_ASCII);
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buf.get(from + i);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+    
+    /** Encodes a field name constant as ASCII bytes. */
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
     }
     
     /**
@@ -249,6 +881,12 @@ public class Packet {
         if (val != null) {
             s.append("val:" + val + "\n");
         }
+        if (expires != -1) {
+            s.append("expires:" + expires + "\n");
+        }
+        if (revision != 0) {
+            s.append("revision:" + revision + "\n");
+        }
         if (reason != null) {
             s.append("reason:" + reason + "\n");
         }
@@ -285,24 +923,87 @@ public class Packet {
      */
     public boolean send(DatagramSocket sock, InetSocketAddress dest,
             boolean debug) {
+        return send(sock, dest, false, debug);
+    }
+    
+    /**
+     * Send the packet to a specified destination in the chosen format.
+     *
+     * @param sock
+     *            is the socket on which the packet is sent
+     * @param dest
+     *            is the socket address of the destination
+     * @param binary
+     *            if true the packet is sent in the binary (v2) format,
+     *            which the destination must be known to understand
+     * @param debug
+     *            if true, the packet is printed before it is sent
+     * @return true on success, false on failure
+     */
+    public boolean send(DatagramSocket sock, InetSocketAddress dest,
+            boolean binary, boolean debug) {
         if (debug) {
             System.out.println("" + sock.getLocalSocketAddress()
                     + " sending packet to " + dest + "\n" + toString());
             System.out.flush();
         }
-        byte[] buf = pack();
-        if (buf == null)
-            return false;
-        DatagramPacket pkt = new DatagramPacket(buf, buf.length);
-        pkt.setSocketAddress(dest);
+        Buffers b = Buffers.borrow();
         try {
-            sock.send(pkt);
+            ByteBuffer buf = b.send();
+            buf.clear();
+            if (!encode(buf, binary))
+                return false;
+            b.sendPkt.setLength(buf.position());
+            b.sendPkt.setSocketAddress(dest);
+            sock.send(b.sendPkt);
         } catch (Exception e) {
             return false;
+        } finally {
+            BUFFERS.give(b);
         }
         return true;
     }
     
+    /**
+     * Send the packet to a specified destination over a datagram channel.
+     * The packet is encoded straight into a pooled direct
+     * send buffer, so the channel does not copy it once more.
+     *
+     * @param chan
+     *            is the channel on which the packet is sent; it may be
+     *            blocking or non-blocking
+     * @param dest
+     *            is the socket address of the destination
+     * @param binary
+     *            if true the packet is sent in the binary (v2) format,
+     *            which the destination must be known to understand
+     * @param debug
+     *            if true, the packet is printed before it is sent
+     * @return true on success, false on failure or if a non-blocking
+     *         channel had no room for the packet
+     */
+    public boolean send(DatagramChannel chan, InetSocketAddress dest,
+            boolean binary, boolean debug) {
+        if (debug) {
+            System.out.println("" + chan.socket().getLocalSocketAddress()
+                    + " sending packet to " + dest + "\n" + toString());
+            System.out.flush();
+        }
+        Buffers b = Buffers.borrow();
+        try {
+            ByteBuffer buf = b.directSend();
+            buf.clear();
+            if (!encode(buf, binary))
+                return false;
+            buf.flip();
+            return chan.send(buf, dest) > 0;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            BUFFERS.give(b);
+        }
+    }
+    
     /**
      * Cleans the packet before sending it to the client by setting 
      * the unnecessary parameters to null. 
@@ -326,28 +1027,185 @@ public class Packet {
      */
     public InetSocketAddress receive(DatagramSocket sock, boolean debug) {
         clear();
-        byte[] buf = new byte[2000];
-        DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+        Buffers b = Buffers.borrow();
+        InetSocketAddress sender;
         try {
-            sock.receive(pkt);
-        } catch (Exception e) {
-            System.out.println("Receive exception: " + e);
-            return null;
+            ByteBuffer buf = b.receive();
+            DatagramPacket pkt = b.receivePkt;
+            pkt.setLength(RECEIVE_LEN);
+            try {
+                sock.receive(pkt);
+            } catch (Exception e) {
+                System.out.println("Receive exception: " + e);
+                return null;
+            }
+            
+            buf.limit(pkt.getLength()).position(0);
+            if (!unpack(buf)) {
+                System.out.println("Error while unpacking packet");
+                return null;
+            }
+            sender = (InetSocketAddress) pkt.getSocketAddress();
+        } finally {
+            BUFFERS.give(b);
         }
-        
-        if (!unpack(buf, pkt.getLength())) {
-            System.out.println("Error while unpacking packet");
+        ttl--;
+        if (debug) {
+            System.out.println(sock.getLocalSocketAddress()
+                    + " received packet from " + sender 
+                    + "\n" + toString());
+            System.out.flush();
+        }
+        if (ttl < 0)
             return null;
+        return sender;
+    }
+    
+    /**
+     * Get the next packet on a datagram channel. The datagram is read
+     * into a pooled direct receive buffer and decoded in
+     * place.
+     *
+     * @param chan
+     *            is the channel on which the packet is received
+     * @param debug
+     *            is a flag; if it is true, the received packet is printed
+     * @return the sender's socket address on success; null on failure,
+     *         or if chan is non-blocking and no datagram was waiting
+     */
+    public InetSocketAddress receive(DatagramChannel chan, boolean debug) {
+        clear();
+        Buffers b = Buffers.borrow();
+        InetSocketAddress sender;
+        try {
+            ByteBuffer buf = b.directReceive();
+            buf.clear();
+            try {
+                sender = (InetSocketAddress) chan.receive(buf);
+            } catch (Exception e) {
+                System.out.println("Receive exception: " + e);
+                return null;
+            }
+            if (sender == null)
+                return null;
+            
+            buf.flip();
+            if (!unpack(buf)) {
+                System.out.println("Error while unpacking packet");
+                return null;
+            }
+        } finally {
+            BUFFERS.give(b);
         }
         ttl--;
         if (debug) {
-            System.out.println(sock.getLocalSocketAddress()
-                    + " received packet from " + pkt.getSocketAddress() 
+            System.out.println(chan.socket().getLocalSocketAddress()
+                    + " received packet from " + sender
                     + "\n" + toString());
             System.out.flush();
         }
         if (ttl < 0)
             return null;
-        return (InetSocketAddress) pkt.getSocketAddress();
+        return sender;
+    }
+    
+    /**
+     * Reusable buffers, used by one thread at a time. Each buffer is
+     * allocated the first time it is needed, so buffers that have only
+     * been used to send, or with one kind of transport, carry nothing
+     * else.
+     */
+    private static class Buffers {
+        
+        /** @return buffers from the pool, or new ones if it is empty. */
+        static Buffers borrow() {
+            Buffers b = BUFFERS.take();
+            return b == null ? new Buffers() : b;
+        }
+        
+        private ByteBuffer receive;
+        DatagramPacket receivePkt;
+        private ByteBuffer send;
+        DatagramPacket sendPkt;
+        private ByteBuffer directReceive;
+        private ByteBuffer directSend;
+        
+        /** Heap receive buffer, backing receivePkt. */
+        ByteBuffer receive() {
+            if (receive == null) {
+                receive = ByteBuffer.allocate(RECEIVE_LEN);
+                receivePkt = new DatagramPacket(receive.array(), RECEIVE_LEN);
+            }
+            return receive;
+        }
+        
+        /** Heap send buffer, backing sendPkt. */
+        ByteBuffer send() {
+            if (send == null) {
+                send = ByteBuffer.allocate(MAX_LEN);
+                sendPkt = new DatagramPacket(send.array(), MAX_LEN);
+            }
+            return send;
+        }
+        
+        /** Direct receive buffer for channels. */
+        ByteBuffer directReceive() {
+            if (directReceive == null)
+                directReceive = ByteBuffer.allocateDirect(RECEIVE_LEN);
+            return directReceive;
+        }
+        
+        /** Direct send buffer for channels. */
+        ByteBuffer directSend() {
+            if (directSend == null)
+                directSend = ByteBuffer.allocateDirect(MAX_LEN);
+            return directSend;
+        }
+    }
+    
+    /**
+     * A bounded pool of reusable objects that any thread may take from
+     * and give to, without locking and without allocating: each object
+     * sits in a slot of its own, which is claimed and filled by
+     * compare-and-set. Threads start looking at different slots, so
+     * they seldom contend for the same one.
+     */
+    private static final class Pool<T> {
+        private final AtomicReferenceArray<T> slots;
+        
+        Pool(int size) {
+            slots = new AtomicReferenceArray<T>(size);
+        }
+        
+        /** @return an object from the pool, or null if it is empty. */
+        T take() {
+            int n = slots.length();
+            int start = start();
+            for (int i = 0; i < n; i++) {
+                int j = (start + i) % n;
+                T t = slots.get(j);
+                if (t != null && slots.compareAndSet(j, t, null))
+                    return t;
+            }
+            return null;
+        }
+        
+        /** Puts an object in the pool, or drops it if the pool is full. */
+        void give(T t) {
+            int n = slots.length();
+            int start = start();
+            for (int i = 0; i < n; i++) {
+                int j = (start + i) % n;
+                if (slots.get(j) == null && slots.compareAndSet(j, null, t))
+                    return;
+            }
+        }
+        
+        /** The slot the calling thread starts looking at. */
+        private int start() {
+            long id = Thread.currentThread().getId();
+            return (int) ((id * 0x9e3779b9L) >>> 8 & 0x7fffffff)
+                    % slots.length();
+        }
     }
-}
\ No newline at end of file
+}
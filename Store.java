@@ -0,0 +1,94 @@
+/**
+ * Authors: Carlos Gonzalez, Nicola Pedretti
+ * Washington University in St. Louis
+ * CSE 473: Introduction to Computer Networks
+ * Lab 3
+ *
+ * The Store interface is the storage behind a DhtServer's (key,value)
+ * pairs. Keys and values are ASCII strings, as they arrive in packets.
+ * Implementations must allow gets, puts and removes from several
+ * threads at once, and keep their pairs ordered or bucketed by the
+ * hash of the key (DhtServer.hashit), so that the pairs of a range of
+ * hashes can be found without looking at the others.
+ **/
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+public interface Store {
+
+    /**
+     * Looks up a key.
+     * @param key
+     *      the key to look up.
+     * @return
+     *      the key's value, or null if the key is not stored.
+     */
+    String get(String key);
+
+    /**
+     * Stores a pair, replacing the key's old value if it had one.
+     * @param key
+     *      the key.
+     * @param val
+     *      the value, which must not be null.
+     * @return
+     *      true if the key was not stored before.
+     */
+    boolean put(String key, String val);
+
+    /**
+     * Stores several pairs, as put would one by one, but possibly at
+     * less cost than that.
+     * @param pairs
+     *      the keys and their values, which must not be null.
+     * @return
+     *      the keys that were not stored before.
+     */
+    List<String> putAll(Map<String, String> pairs);
+
+    /**
+     * Removes a key and its value, if the key is stored.
+     * @param key
+     *      the key to remove.
+     * @return
+     *      true if the key was stored.
+     */
+    boolean remove(String key);
+
+    /**
+     * Removes several keys, as remove would one by one, but possibly at
+     * less cost than that.
+     * @param keys
+     *      the keys to remove.
+     */
+    void removeAll(Collection<String> keys);
+
+    /**
+     * @return the number of pairs stored.
+     */
+    int size();
+
+    /**
+     * Hands every pair to the action. Pairs put or removed meanwhile may
+     * or may not be seen, but every other pair is seen exactly once.
+     * @param action
+     *      receives each key and its value.
+     */
+    void forEach(BiConsumer<String, String> action);
+
+    /**
+     * Hands every pair whose key hashes into a range to the action. As
+     * with forEach, pairs put or removed meanwhile may or may not be
+     * seen.
+     * @param from
+     *      first hash of the range.
+     * @param to
+     *      last hash of the range.
+     * @param action
+     *      receives each key and its value.
+     */
+    void forRange(int from, int to, BiConsumer<String, String> action);
+}
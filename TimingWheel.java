@@ -0,0 +1,124 @@
+/**
+ * Authors: Carlos Gonzalez, Nicola Pedretti
+ * Washington University in St. Louis
+ * CSE 473: Introduction to Computer Networks
+ * Lab 3
+ *
+ * The TimingWheel class is a hashed timing wheel: a ring of slots, each
+ * covering one tick of time, where an item due at some time is kept in
+ * the slot of that time's tick, modulo the number of slots. Scheduling
+ * an item is a single add to its slot, and each tick only looks at the
+ * items in one slot; items due more than one lap ahead stay in their
+ * slot until the lap they are due in comes around. Nothing ever scans
+ * all the items.
+ *
+ * Items can be scheduled from any thread; advance is meant to be called
+ * from a single thread, once a tick or so. Scheduling shares a lock that
+ * advance takes alone while it sweeps, so an item is never put in a slot
+ * the sweep has just passed, where it would wait a whole lap.
+ **/
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+public class TimingWheel<K> {
+
+    private ArrayList<ArrayList<Entry<K>>> slots;
+    private int mask; // number of slots minus one
+    private long tick; // ms per slot
+    private long lastTick; // last tick advanced over
+    //Held shared to schedule, alone to sweep.
+    private ReentrantReadWriteLock sweep = new ReentrantReadWriteLock();
+
+    /**
+     * Creates an empty wheel.
+     * @param numSlots
+     *      number of slots, rounded up to a power of two.
+     * @param tick
+     *      time covered by each slot, in ms.
+     * @param now
+     *      the current time, in ms.
+     */
+    public TimingWheel(int numSlots, long tick, long now) {
+        int n = Integer.highestOneBit(Math.max(numSlots, 2) - 1) << 1;
+        slots = new ArrayList<ArrayList<Entry<K>>>(n);
+        for (int i = 0; i < n; i++)
+            slots.add(new ArrayList<Entry<K>>());
+        mask = n - 1;
+        this.tick = tick;
+        lastTick = now / tick;
+    }
+
+    /**
+     * Schedules an item.
+     * @param item
+     *      the item.
+     * @param due
+     *      the time the item is due, in ms.
+     */
+    public void schedule(K item, long due) {
+        sweep.readLock().lock();
+        try {
+            //Items already due go in the slot advance looks at next.
+            long t = Math.max(due / tick, lastTick);
+            ArrayList<Entry<K>> slot = slots.get((int) t & mask);
+            synchronized (slot) {
+                slot.add(new Entry<K>(item, due));
+            }
+        } finally {
+            sweep.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the wheel on to the current time, handing every item that
+     * has come due to the action, with the time it was due. Items
+     * scheduled for a time already past are handed over on the next
+     * call. The action runs once the sweep is over, so it may schedule
+     * items itself.
+     * @param now
+     *      the current time, in ms.
+     * @param action
+     *      receives each item that is due, and its due time.
+     */
+    public void advance(long now, BiConsumer<K, Long> action) {
+        long to = now / tick;
+        ArrayList<Entry<K>> due = new ArrayList<Entry<K>>();
+        sweep.writeLock().lock();
+        try {
+            //After a long pause, one lap visits every slot anyway.
+            long from = Math.max(lastTick, to - mask);
+            for (long t = from; t <= to; t++) {
+                ArrayList<Entry<K>> slot = slots.get((int) t & mask);
+                synchronized (slot) {
+                    Iterator<Entry<K>> it = slot.iterator();
+                    while (it.hasNext()) {
+                        Entry<K> e = it.next();
+                        if (e.due > now)
+                            continue;
+                        due.add(e);
+                        it.remove();
+                    }
+                }
+            }
+            lastTick = Math.max(lastTick, to);
+        } finally {
+            sweep.writeLock().unlock();
+        }
+        for (Entry<K> e : due)
+            action.accept(e.item, e.due);
+    }
+
+    /** An item and the time it is due. */
+    private static final class Entry<K> {
+        final K item;
+        final long due;
+
+        Entry(K item, long due) {
+            this.item = item;
+            this.due = due;
+        }
+    }
+}